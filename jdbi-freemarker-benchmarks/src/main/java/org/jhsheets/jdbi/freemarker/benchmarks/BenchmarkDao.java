@@ -0,0 +1,50 @@
+package org.jhsheets.jdbi.freemarker.benchmarks;
+
+import org.skife.jdbi.v2.BenchmarkStatementContext;
+import org.skife.jdbi.v2.StatementContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The statements used by the benchmarks.  The Freemarker versions are in {@code BenchmarkDao.xml}, and the
+ * StringTemplate3 baseline versions are in {@code BenchmarkDao.sql.stg}.
+ */
+public final class BenchmarkDao
+{
+    public static final String TEMPLATE_FILE = "org/jhsheets/jdbi/freemarker/benchmarks/BenchmarkDao.xml";
+
+    /** A statement without any markup */
+    public static final String STATIC_STATEMENT = "insertRecord";
+
+    /** A statement which lists every element of the bound 'ids' list */
+    public static final String LIST_STATEMENT = "getRecords";
+
+    private BenchmarkDao()
+    {
+    }
+
+    public static StatementContext staticContext()
+    {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("id", 1);
+        values.put("name", "name");
+        return new BenchmarkStatementContext(values);
+    }
+
+    /**
+     * @param size The number of elements in the bound 'ids' list
+     */
+    public static StatementContext listContext(final int size)
+    {
+        final List<Integer> ids = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            ids.add(i);
+        }
+        return new BenchmarkStatementContext(Collections.<String, Object>singletonMap("ids", ids));
+    }
+}
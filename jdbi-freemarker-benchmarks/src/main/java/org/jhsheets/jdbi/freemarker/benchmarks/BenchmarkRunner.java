@@ -0,0 +1,27 @@
+package org.jhsheets.jdbi.freemarker.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported along with the timings.
+ * <br/><br/>
+ * Any JMH command line options may be passed in, e.g. {@code java -jar target/benchmarks.jar ListRender -p size=1000}
+ */
+public class BenchmarkRunner
+{
+    public static void main(final String[] args)
+    throws RunnerException, CommandLineOptionException
+    {
+        final Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,46 @@
+package org.jhsheets.jdbi.freemarker.benchmarks;
+
+import org.jhsheets.jdbi.freemarker.FreemarkerConfig;
+import org.jhsheets.jdbi.freemarker.FreemarkerTemplateLocator;
+import org.openjdk.jmh.annotations.*;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first call to a statement: the template file is parsed and the statement compiled before it's rendered
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColdLoadBenchmark
+{
+    private StatementContext ctx;
+
+    @Setup
+    public void setup()
+    {
+        ctx = BenchmarkDao.listContext(10);
+    }
+
+    @Benchmark
+    public String freemarker()
+    throws Exception
+    {
+        // A new configuration has an empty statement index and template cache
+        final FreemarkerConfig config = FreemarkerConfig.builder().build();
+        return new FreemarkerTemplateLocator(BenchmarkDao.TEMPLATE_FILE, null, config).locate(BenchmarkDao.LIST_STATEMENT, ctx);
+    }
+
+    @Benchmark
+    public String stringTemplate3()
+    throws Exception
+    {
+        // Without caching the template group is loaded for every locator
+        return StringTemplate3StatementLocator.builder(BenchmarkDao.class).build().locate(BenchmarkDao.LIST_STATEMENT, ctx);
+    }
+}
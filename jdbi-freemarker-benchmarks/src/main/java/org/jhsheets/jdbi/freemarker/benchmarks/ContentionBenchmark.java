@@ -0,0 +1,59 @@
+package org.jhsheets.jdbi.freemarker.benchmarks;
+
+import org.jhsheets.jdbi.freemarker.FreemarkerTemplateLocator;
+import org.openjdk.jmh.annotations.*;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
+import org.skife.jdbi.v2.tweak.StatementLocator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every available thread locating statements through the shared default configuration, the same way the
+ * {@link org.jhsheets.jdbi.freemarker.FreemarkerTemplate} annotation does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ContentionBenchmark
+{
+    private StatementContext staticCtx;
+    private StatementContext listCtx;
+    private StatementLocator freemarker;
+    private StatementLocator stringTemplate3;
+
+    @Setup
+    public void setup()
+    throws Exception
+    {
+        staticCtx = BenchmarkDao.staticContext();
+        listCtx = BenchmarkDao.listContext(10);
+        freemarker = new FreemarkerTemplateLocator(BenchmarkDao.TEMPLATE_FILE, null);
+        stringTemplate3 = StringTemplate3StatementLocator.builder(BenchmarkDao.class).shouldCache().build();
+    }
+
+    @Benchmark
+    public String freemarkerStatic()
+    throws Exception
+    {
+        return freemarker.locate(BenchmarkDao.STATIC_STATEMENT, staticCtx);
+    }
+
+    @Benchmark
+    public String freemarkerList()
+    throws Exception
+    {
+        return freemarker.locate(BenchmarkDao.LIST_STATEMENT, listCtx);
+    }
+
+    @Benchmark
+    public String stringTemplate3List()
+    throws Exception
+    {
+        return stringTemplate3.locate(BenchmarkDao.LIST_STATEMENT, listCtx);
+    }
+}
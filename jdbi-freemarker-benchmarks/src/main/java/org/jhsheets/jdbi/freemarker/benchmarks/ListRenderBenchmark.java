@@ -0,0 +1,56 @@
+package org.jhsheets.jdbi.freemarker.benchmarks;
+
+import org.jhsheets.jdbi.freemarker.FreemarkerConfig;
+import org.jhsheets.jdbi.freemarker.FreemarkerTemplateLocator;
+import org.openjdk.jmh.annotations.*;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
+import org.skife.jdbi.v2.tweak.StatementLocator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a {@code <#list>} over a bound list, once its template has been compiled
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListRenderBenchmark
+{
+    @Param({"10", "1000", "10000"})
+    public int size;
+
+    private StatementContext ctx;
+    private StatementLocator freemarker;
+    private StatementLocator stringTemplate3;
+
+    @Setup
+    public void setup()
+    throws Exception
+    {
+        ctx = BenchmarkDao.listContext(size);
+        freemarker = new FreemarkerTemplateLocator(BenchmarkDao.TEMPLATE_FILE, null, FreemarkerConfig.builder().build());
+        stringTemplate3 = StringTemplate3StatementLocator.builder(BenchmarkDao.class).shouldCache().build();
+
+        // Load and compile the templates
+        freemarker.locate(BenchmarkDao.LIST_STATEMENT, ctx);
+        stringTemplate3.locate(BenchmarkDao.LIST_STATEMENT, ctx);
+    }
+
+    @Benchmark
+    public String freemarker()
+    throws Exception
+    {
+        return freemarker.locate(BenchmarkDao.LIST_STATEMENT, ctx);
+    }
+
+    @Benchmark
+    public String stringTemplate3()
+    throws Exception
+    {
+        return stringTemplate3.locate(BenchmarkDao.LIST_STATEMENT, ctx);
+    }
+}
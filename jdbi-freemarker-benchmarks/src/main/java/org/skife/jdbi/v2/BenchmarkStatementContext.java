@@ -0,0 +1,108 @@
+package org.skife.jdbi.v2;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link StatementContext} which doesn't need a database connection, so statement locators can be benchmarked on
+ * their own.
+ * <br/><br/>
+ * It lives in JDBI's package because {@link Binding} only lets JDBI add arguments to it.  Each value is exposed both
+ * as a bound argument (used by Freemarker templates) and as an attribute (used by StringTemplate).
+ */
+public class BenchmarkStatementContext
+implements StatementContext
+{
+    private final Binding binding = new Binding();
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    public BenchmarkStatementContext(final Map<String, Object> values)
+    {
+        for (final Map.Entry<String, Object> value : values.entrySet())
+        {
+            binding.addNamed(value.getKey(), new ObjectArgument(value.getValue()));
+            attributes.put(value.getKey(), value.getValue());
+        }
+    }
+
+    @Override
+    public Object setAttribute(final String key, final Object value)
+    {
+        return attributes.put(key, value);
+    }
+
+    @Override
+    public Object getAttribute(final String key)
+    {
+        return attributes.get(key);
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+        return attributes;
+    }
+
+    @Override
+    public String getRawSql()
+    {
+        return null;
+    }
+
+    @Override
+    public String getRewrittenSql()
+    {
+        return null;
+    }
+
+    @Override
+    public String getLocatedSql()
+    {
+        return null;
+    }
+
+    @Override
+    public PreparedStatement getStatement()
+    {
+        return null;
+    }
+
+    @Override
+    public Connection getConnection()
+    {
+        return null;
+    }
+
+    @Override
+    public Binding getBinding()
+    {
+        return binding;
+    }
+
+    @Override
+    public Class<?> getSqlObjectType()
+    {
+        return null;
+    }
+
+    @Override
+    public Method getSqlObjectMethod()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean isReturningGeneratedKeys()
+    {
+        return false;
+    }
+
+    @Override
+    public void addCleanable(final Cleanable cleanable)
+    {
+        // Nothing to clean up
+    }
+}
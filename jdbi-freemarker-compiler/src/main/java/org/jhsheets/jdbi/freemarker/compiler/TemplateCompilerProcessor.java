@@ -0,0 +1,264 @@
+package org.jhsheets.jdbi.freemarker.compiler;
+
+import freemarker.core.ParseException;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import org.jhsheets.jdbi.freemarker.FreemarkerTemplate;
+import org.jhsheets.jdbi.freemarker.SqlStatementIndex;
+import org.jhsheets.jdbi.freemarker.SqlStatementInfo;
+import org.jhsheets.jdbi.freemarker.SqlTemplateLoader;
+import org.jhsheets.jdbi.freemarker.StatementBundle;
+import org.jhsheets.jdbi.freemarker.XmlHandler;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlCall;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Validates XML templates against the {@link org.jhsheets.jdbi.freemarker.FreemarkerTemplate} annotated interfaces
+ * being compiled, and writes a pre-indexed {@link org.jhsheets.jdbi.freemarker.StatementBundle} next to each XML
+ * template file.
+ * <br/><br/>
+ * Templates are resolved the same way the runtime resolves them.  A compile error is reported on the annotated
+ * element if its XML file can't be found or parsed, if it doesn't contain the statement, or if the statement isn't a
+ * valid Freemarker template.
+ * <br/><br/>
+ * XML files are read from the class output directory, so they must be copied there before compilation (as Maven
+ * does with {@code src/main/resources}).
+ */
+@SupportedAnnotationTypes("org.jhsheets.jdbi.freemarker.FreemarkerTemplate")
+public class TemplateCompilerProcessor
+extends AbstractProcessor
+{
+    private static Logger logger = LoggerFactory.getLogger(TemplateCompilerProcessor.class);
+
+    /** Statements of each XML file we've read, keyed by their normalized ID.  Null if the file couldn't be read */
+    private final Map<String, Map<String, SqlStatementInfo>> files = new HashMap<>();
+
+    /** Templates we've already compiled */
+    private final Set<String> compiled = new HashSet<>();
+
+    private final Configuration cfg = new Configuration();
+
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv)
+    {
+        for (final Element element : roundEnv.getElementsAnnotatedWith(FreemarkerTemplate.class))
+        {
+            if (element.getKind() == ElementKind.METHOD)
+            {
+                processMethod((ExecutableElement)element);
+            }
+            else if (element.getKind().isInterface() || element.getKind().isClass())
+            {
+                processType((TypeElement)element);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check every SQL method of an annotated type, except those with their own annotation
+     */
+    private void processType(final TypeElement type)
+    {
+        final String templateLocation = getTemplateLocation(type.getAnnotation(FreemarkerTemplate.class), type);
+        for (final ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type)))
+        {
+            if (method.getAnnotation(FreemarkerTemplate.class) != null) continue;
+
+            final String sqlName = getSqlName(method);
+            if (sqlName != null) check(templateLocation, sqlName, method);
+        }
+    }
+
+    private void processMethod(final ExecutableElement method)
+    {
+        final String sqlName = getSqlName(method);
+        if (sqlName == null)
+        {
+            error(method, "@FreemarkerTemplate methods must also have a @SqlQuery, @SqlUpdate, @SqlBatch or @SqlCall annotation");
+            return;
+        }
+
+        final FreemarkerTemplate annotation = method.getAnnotation(FreemarkerTemplate.class);
+        final String statementID = annotation.statementID().isEmpty() ? sqlName : annotation.statementID();
+        check(getTemplateLocation(annotation, (TypeElement)method.getEnclosingElement()), statementID, method);
+    }
+
+    private void check(final String templateLocation, final String statementID, final Element element)
+    {
+        final Map<String, SqlStatementInfo> statements = getStatements(templateLocation, element);
+        if (statements == null) return; // already reported
+
+        final SqlStatementInfo stmt = statements.get(SqlStatementIndex.normalizeID(statementID));
+        if (stmt == null)
+        {
+            error(element, "Unable to find statement: " + statementID + " in XML template file: " + templateLocation);
+            return;
+        }
+
+        final String templateName = SqlTemplateLoader.buildTemplateName(templateLocation, stmt.id);
+        if (compiled.add(templateName) == false) return;
+
+        try
+        {
+            new Template(templateName, new StringReader(stmt.statement), cfg);
+        }
+        catch (ParseException e)
+        {
+            error(element, "Syntax error in statement: " + statementID + " in XML template file: " + templateLocation + ": " + e.getMessage());
+        }
+        catch (IOException e)
+        {
+            error(element, "Unable to compile statement: " + statementID + " in XML template file: " + templateLocation + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read and index an XML file the first time it's used, and write its bundle
+     */
+    private Map<String, SqlStatementInfo> getStatements(final String templateLocation, final Element element)
+    {
+        if (files.containsKey(templateLocation)) return files.get(templateLocation);
+
+        Map<String, SqlStatementInfo> statements = null;
+        try
+        {
+            final List<SqlStatementInfo> parsed = parse(templateLocation);
+            statements = new HashMap<>();
+            for (final SqlStatementInfo stmt : parsed)
+            {
+                statements.put(SqlStatementIndex.normalizeID(stmt.id), stmt);
+            }
+            writeBundle(templateLocation, parsed, element);
+        }
+        catch (FileNotFoundException e)
+        {
+            error(element, "Unable to find XML template file: " + templateLocation);
+        }
+        catch (IOException | SAXException e)
+        {
+            error(element, "Error parsing XML template file: " + templateLocation + ": " + e.getMessage());
+        }
+
+        files.put(templateLocation, statements);
+        return statements;
+    }
+
+    private List<SqlStatementInfo> parse(final String templateLocation)
+    throws IOException, SAXException
+    {
+        final FileObject file = getResource(templateLocation);
+        try
+        {
+            final XmlHandler xmlHandler = new XmlHandler();
+            final XMLReader xmlReader = javax.xml.parsers.SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            xmlReader.setErrorHandler(new XmlHandler.ErrHandler(logger));
+            xmlReader.setContentHandler(xmlHandler);
+
+            try (final InputStream is = file.openInputStream())
+            {
+                xmlReader.parse(new InputSource(is));
+            }
+            return new ArrayList<>(xmlHandler.getStatements().values());
+        }
+        catch (javax.xml.parsers.ParserConfigurationException e)
+        {
+            throw new IOException("Unable to create SAX parser", e);
+        }
+    }
+
+    /**
+     * Look for the file in the class output first, as that's where build tools copy resources
+     */
+    private FileObject getResource(final String templateLocation)
+    throws FileNotFoundException
+    {
+        for (final StandardLocation location : new StandardLocation[]{ StandardLocation.CLASS_OUTPUT, StandardLocation.SOURCE_PATH })
+        {
+            try
+            {
+                final FileObject file = processingEnv.getFiler().getResource(location, "", templateLocation);
+                // Opening the file is the only reliable way to see if it exists
+                file.openInputStream().close();
+                return file;
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                // try the next location
+            }
+        }
+        throw new FileNotFoundException(templateLocation);
+    }
+
+    private void writeBundle(final String templateLocation, final List<SqlStatementInfo> statements, final Element element)
+    throws IOException
+    {
+        final FileObject bundle = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", StatementBundle.getBundlePath(templateLocation), element);
+        try (final OutputStream os = bundle.openOutputStream())
+        {
+            StatementBundle.write(statements, os);
+        }
+    }
+
+    /**
+     * Mirrors {@code FreemarkerLocatorFactory}; the default location uses the binary name of the type, the same as
+     * {@link Class#getName()}
+     */
+    private String getTemplateLocation(final FreemarkerTemplate annotation, final TypeElement type)
+    {
+        return annotation.templateLoc().isEmpty()
+             ? processingEnv.getElementUtils().getBinaryName(type).toString().replace(".", "/") + ".xml"
+             : annotation.templateLoc();
+    }
+
+    /**
+     * @return The name JDBI passes to the statement locator for the method (the SQL annotation's value, or the method
+     *         name if it has none), or null if the method isn't a SQL method
+     */
+    private static String getSqlName(final ExecutableElement method)
+    {
+        final String value;
+        if (method.getAnnotation(SqlQuery.class) != null) value = method.getAnnotation(SqlQuery.class).value();
+        else if (method.getAnnotation(SqlUpdate.class) != null) value = method.getAnnotation(SqlUpdate.class).value();
+        else if (method.getAnnotation(SqlBatch.class) != null) value = method.getAnnotation(SqlBatch.class).value();
+        else if (method.getAnnotation(SqlCall.class) != null) value = method.getAnnotation(SqlCall.class).value();
+        else return null;
+
+        return SqlQuery.DEFAULT_VALUE.equals(value) ? method.getSimpleName().toString() : value;
+    }
+
+    private void error(final Element element, final String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,238 @@
+package org.jhsheets.jdbi.freemarker.jdbi3;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.jdbi.v3.core.config.ConfigRegistry;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.core.statement.TemplateEngine;
+import org.jdbi.v3.core.statement.UnableToCreateStatementException;
+import org.jhsheets.jdbi.freemarker.FreemarkerConfig;
+import org.jhsheets.jdbi.freemarker.FreemarkerTemplateLocator;
+import org.jhsheets.jdbi.freemarker.SqlTemplateLoader;
+import org.jhsheets.jdbi.freemarker.WhitespaceNormalizingWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A JDBI 3 {@link org.jdbi.v3.core.statement.TemplateEngine} which treats each statement as a Freemarker template.
+ * <br/><br/>
+ * Templates are rendered with the statement's attributes (the values given to {@code define()} or {@code @Define}) as
+ * their data model, so {@code <#if name??>} tests whether {@code name} was defined.  Bound parameters aren't visible to
+ * templates; refer to them with {@code :name} as usual.  The {@code bind()} and {@code bindIn()} template methods
+ * only work with JDBI 2.
+ * <br/><br/>
+ * The configuration is chosen each time a statement is rendered: the one given to the engine; or one defined as the
+ * {@link FreemarkerConfig#ATTRIBUTE} attribute of the {@code Jdbi}, handle or statement; or for a SQL Object's
+ * statement, the configuration for its class loader if
+ * {@link FreemarkerTemplateLocator#setDefaultScopes(org.jhsheets.jdbi.freemarker.FreemarkerConfigScopes) scopes} are
+ * set; or the {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration}.  JDBI caches the result of
+ * {@link #parse(String, ConfigRegistry)} for each distinct statement, and it compiles the template the first time
+ * it's rendered with each configuration, so every later execution only renders it.  Statements without any
+ * Freemarker markup aren't compiled at all.
+ * <br/><br/>
+ * The engines installed by {@link UseFreemarkerSqlLocator} know the XML template file their statements come from, so
+ * fragments are included relative to it, as they are with JDBI 2.  Other engines compile statements outside of any
+ * file, so their includes must start with {@code /}.
+ * <pre>
+ * {@code
+ * jdbi.getConfig(SqlStatements.class).setTemplateEngine(new FreemarkerEngine());
+ * jdbi.define(FreemarkerConfig.ATTRIBUTE, config); // optional
+ * }
+ * </pre>
+ */
+public class FreemarkerEngine
+implements TemplateEngine
+{
+    /** Names the compiled templates in error messages */
+    private static final AtomicInteger templateCount = new AtomicInteger();
+
+    private final FreemarkerConfig config;
+
+    /** The XML template file the statements come from, which includes are relative to, or null if there isn't one */
+    private final String templateFile;
+
+
+    /**
+     * Create an engine which finds the configuration each time a statement is rendered
+     */
+    public FreemarkerEngine()
+    {
+        this(null);
+    }
+
+    /**
+     * @param config The configuration used to compile and process templates. If null, we'll use the configuration
+     *               defined as the statement's {@link FreemarkerConfig#ATTRIBUTE} attribute, or the
+     *               {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration}, at the time each
+     *               statement is rendered
+     */
+    public FreemarkerEngine(final FreemarkerConfig config)
+    {
+        this(config, null);
+    }
+
+    /**
+     * @param templateFile The path to the XML template file the statements come from
+     */
+    FreemarkerEngine(final FreemarkerConfig config, final String templateFile)
+    {
+        this.config = config;
+        this.templateFile = templateFile;
+    }
+
+    @Override
+    public String render(final String template, final StatementContext ctx)
+    {
+        return parse(template, ctx.getConfig()).get().apply(ctx);
+    }
+
+    @Override
+    public Optional<Function<StatementContext, String>> parse(final String template, final ConfigRegistry registry)
+    {
+        return Optional.<Function<StatementContext, String>>of(new ParsedStatement(template));
+    }
+
+    /**
+     * @return The configuration given to the engine; or one attached to the statement; or the one for the SQL Object's
+     *         class loader; or the default configuration
+     */
+    private FreemarkerConfig getActiveConfig(final StatementContext ctx)
+    {
+        if (config != null) return config;
+
+        final Object attached = ctx.getAttribute(FreemarkerConfig.ATTRIBUTE);
+        if (attached instanceof FreemarkerConfig) return (FreemarkerConfig)attached;
+
+        return ctx.getExtensionMethod() == null
+             ? FreemarkerTemplateLocator.getDefaultConfig()
+             : FreemarkerTemplateLocator.getDefaultConfig(ctx.getExtensionMethod().getType());
+    }
+
+    /**
+     * @return A name for a compiled statement; in the XML template file, so includes are relative to the file
+     */
+    private String nextTemplateName()
+    {
+        final String name = "jdbi3-statement-" + templateCount.incrementAndGet();
+        return templateFile == null ? name : SqlTemplateLoader.buildTemplateName(templateFile, name);
+    }
+
+    /**
+     * @return true if the statement might contain interpolations, directives or comments
+     */
+    private static boolean hasMarkup(final String template)
+    {
+        return template.contains("${") || template.contains("#{")
+            || template.contains("<#") || template.contains("</#") || template.contains("<@") || template.contains("</@")
+            || template.contains("[#") || template.contains("[/#") || template.contains("[@") || template.contains("[/@");
+    }
+
+
+    /**
+     * A statement, which is compiled by the configuration it's rendered with
+     */
+    private final class ParsedStatement
+    implements Function<StatementContext, String>
+    {
+        private final String source;
+        private final boolean markup;
+
+        /** The statement compiled by the configuration it was last rendered with */
+        private volatile CompiledTemplate compiled;
+
+        ParsedStatement(final String source)
+        {
+            this.source = source;
+            this.markup = hasMarkup(source);
+        }
+
+        @Override
+        public String apply(final StatementContext ctx)
+        {
+            final FreemarkerConfig activeConfig = getActiveConfig(ctx);
+
+            CompiledTemplate found = compiled;
+            if (found == null || found.config != activeConfig)
+            {
+                found = compile(activeConfig);
+                compiled = found;
+            }
+            return found.apply(ctx);
+        }
+
+        private CompiledTemplate compile(final FreemarkerConfig activeConfig)
+        {
+            final Set<WhitespaceNormalizingWriter.Option> options = activeConfig.isNormalizingWhitespace() ? activeConfig.getWhitespaceOptions() : null;
+
+            // A statement without markup always produces the same SQL, so there's no need to compile or process it
+            if (markup == false)
+            {
+                return new CompiledTemplate(activeConfig, null, options == null ? source : WhitespaceNormalizingWriter.normalize(source, options), null);
+            }
+
+            final Configuration cfg = activeConfig.getConfiguration();
+            try
+            {
+                return new CompiledTemplate(activeConfig, new Template(nextTemplateName(), source, cfg), source, options);
+            }
+            catch (IOException e)
+            {
+                throw new UnableToCreateStatementException("Unable to compile Freemarker template: " + source, e);
+            }
+        }
+    }
+
+    /**
+     * A statement compiled by a configuration, which renders it with the statement's attributes
+     */
+    private static final class CompiledTemplate
+    implements Function<StatementContext, String>
+    {
+        final FreemarkerConfig config;
+
+        /** The compiled template, or null if the statement has no markup */
+        private final Template template;
+
+        /** The SQL of a statement without markup, or the source of a template */
+        private final String sql;
+
+        /** The syntax recognized when collapsing whitespace, or null to leave whitespace alone */
+        private final Set<WhitespaceNormalizingWriter.Option> whitespaceOptions;
+
+        /** The length of the last rendered statement, used to size the next one's buffer */
+        private volatile int sizeHint;
+
+        CompiledTemplate(final FreemarkerConfig config, final Template template, final String sql, final Set<WhitespaceNormalizingWriter.Option> whitespaceOptions)
+        {
+            this.config = config;
+            this.template = template;
+            this.sql = sql;
+            this.whitespaceOptions = whitespaceOptions;
+            this.sizeHint = sql.length();
+        }
+
+        @Override
+        public String apply(final StatementContext ctx)
+        {
+            if (template == null) return sql;
+
+            final StringWriter out = new StringWriter(sizeHint);
+            try
+            {
+                template.process(ctx.getAttributes(), whitespaceOptions != null ? new WhitespaceNormalizingWriter(out, whitespaceOptions) : out);
+            }
+            catch (TemplateException | IOException e)
+            {
+                throw new UnableToCreateStatementException("Unable to render Freemarker template", e, ctx);
+            }
+            sizeHint = out.getBuffer().length();
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jhsheets.jdbi.freemarker.jdbi3;
+
+import org.jdbi.v3.core.config.ConfigRegistry;
+import org.jdbi.v3.sqlobject.locator.SqlLocator;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlCall;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlScript;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+import org.jhsheets.jdbi.freemarker.SqlStatementIndex;
+import org.jhsheets.jdbi.freemarker.SqlStatementInfo;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+
+/**
+ * A JDBI 3 {@link org.jdbi.v3.sqlobject.locator.SqlLocator} which finds each SQL Object method's statement in an XML
+ * template file, using the same format as the {@link org.jhsheets.jdbi.freemarker.FreemarkerTemplate} annotation.
+ * <br/><br/>
+ * The statement is returned as it appears in the XML file, and is rendered by the {@link FreemarkerEngine}.  XML files
+ * are loaded through the SQL Object type's class loader, are parsed once (or read from their pre-compiled
+ * {@link org.jhsheets.jdbi.freemarker.StatementBundle}), and aren't checked for changes.  JDBI locates each method's
+ * statement once, when the SQL Object type is first used.  A method can't run a {@code <fragment>}; they're only
+ * included or imported by other statements.
+ *
+ * @see UseFreemarkerSqlLocator
+ */
+public class FreemarkerSqlLocator
+implements SqlLocator
+{
+    /** Shared by all locators, so each XML file is only parsed once */
+    private static final SqlStatementIndex index = new SqlStatementIndex(true);
+
+    /** Reported as the last-modified time of every file, since they're never checked for changes */
+    private static final long UNMODIFIED = 0L;
+
+    private final String templateLoc;
+    private final String statementID;
+
+
+    /**
+     * Create a locator which reads each SQL Object type's statements from an XML file with the same name as the type
+     */
+    public FreemarkerSqlLocator()
+    {
+        this(null, null);
+    }
+
+    /**
+     * @param templateLoc The path to the XML template file.  If null, we'll use a file with the same name as the SQL
+     *                    Object type
+     * @param statementID The ID of the statement in the XML template file.  If null, we'll use the method's SQL
+     *                    annotation value, or the method name if it has none
+     */
+    public FreemarkerSqlLocator(final String templateLoc, final String statementID)
+    {
+        this.templateLoc = templateLoc;
+        this.statementID = statementID;
+    }
+
+    @Override
+    public String locate(final Class<?> sqlObjectType, final Method method, final ConfigRegistry config)
+    {
+        final String templateFile = templateLoc == null ? getDefaultTemplatePath(sqlObjectType) : templateLoc;
+        final String id = statementID == null ? getSqlName(method) : statementID;
+
+        final ClassLoader classLoader = sqlObjectType.getClassLoader() == null
+                                      ? Thread.currentThread().getContextClassLoader()
+                                      : sqlObjectType.getClassLoader();
+        final URL templateUrl = classLoader.getResource(templateFile);
+        if (templateUrl == null) throw new IllegalStateException("Unable to find XML template file: " + templateFile);
+
+        final SqlStatementInfo stmt;
+        try
+        {
+            // Key the index by the resolved location, as different class loaders may have different files at a path
+            stmt = index.find(templateUrl.toExternalForm(), templateUrl, id, UNMODIFIED);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to read XML template file: " + templateFile, e);
+        }
+
+        if (stmt == null) throw new IllegalStateException("Unable to find statement: " + id + " in XML template file: " + templateFile);
+        if (stmt.statementType == SqlStatementInfo.StatementType.fragment)
+        {
+            throw new IllegalStateException("Statement: " + id + " in XML template file: " + templateFile + " is a fragment, which can only be included or imported");
+        }
+        return stmt.statement;
+    }
+
+    /**
+     * @return The path to the passed-in class, with '/' instead of '.'
+     */
+    static String getDefaultTemplatePath(final Class<?> sqlObjectType)
+    {
+        return sqlObjectType.getName().replace(".", "/") + ".xml";
+    }
+
+    /**
+     * @return The method's SQL annotation value, or the method name if it has none
+     */
+    private static String getSqlName(final Method method)
+    {
+        String value = "";
+        if (method.isAnnotationPresent(SqlQuery.class)) value = method.getAnnotation(SqlQuery.class).value();
+        else if (method.isAnnotationPresent(SqlUpdate.class)) value = method.getAnnotation(SqlUpdate.class).value();
+        else if (method.isAnnotationPresent(SqlBatch.class)) value = method.getAnnotation(SqlBatch.class).value();
+        else if (method.isAnnotationPresent(SqlCall.class)) value = method.getAnnotation(SqlCall.class).value();
+        else if (method.isAnnotationPresent(SqlScript.class)) value = method.getAnnotation(SqlScript.class).value();
+
+        return value.isEmpty() ? method.getName() : value;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jhsheets.jdbi.freemarker.jdbi3;
+
+import org.jdbi.v3.core.extension.annotation.UseExtensionConfigurer;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The JDBI 3 equivalent of {@link org.jhsheets.jdbi.freemarker.FreemarkerTemplate}.  Reads the SQL Object's
+ * statements from an XML template file with a {@link FreemarkerSqlLocator}, and renders them with a
+ * {@link FreemarkerEngine}.
+ * <br/><br/>
+ * If {@code templateLoc} isn't given, the XML file has the same name as the SQL Object type.  Statements are found by
+ * the SQL annotation's value, or the method name if it has none; {@code statementID} overrides this on a method.
+ * <br/><br/>
+ * JDBI's check for unused bindings is left on.  Templates which leave out the parameters a condition doesn't need can
+ * turn it off with {@code allowUnusedBindings = true}.  The configuration can be given to the {@code Jdbi}, a handle or
+ * a statement with {@code define(FreemarkerConfig.ATTRIBUTE, config)}; otherwise the default configuration is used.
+ * <pre>
+ * {@code
+ * @UseFreemarkerSqlLocator
+ * public interface MyDao
+ * {
+ *     @SqlQuery
+ *     List<String> getRecords(@Define("idList") List<Integer> idList);
+ * }
+ * }
+ * </pre>
+ */
+@UseExtensionConfigurer(UseFreemarkerSqlLocatorImpl.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD,ElementType.TYPE})
+public @interface UseFreemarkerSqlLocator
+{
+    String templateLoc() default "";
+    String statementID() default "";
+
+    /** Whether to allow bound parameters which the rendered statement doesn't use */
+    boolean allowUnusedBindings() default false;
+}
@@ -0,0 +1,59 @@
+package org.jhsheets.jdbi.freemarker.jdbi3;
+
+import org.jdbi.v3.core.config.ConfigRegistry;
+import org.jdbi.v3.core.extension.ExtensionConfigurer;
+import org.jdbi.v3.core.statement.SqlStatements;
+import org.jdbi.v3.sqlobject.SqlObjects;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Installs the {@link FreemarkerSqlLocator} and {@link FreemarkerEngine} for {@link UseFreemarkerSqlLocator}
+ */
+public class UseFreemarkerSqlLocatorImpl
+implements ExtensionConfigurer
+{
+    /**
+     * An engine for each XML template file, so statements include fragments relative to their file.  Engines are
+     * shared, so JDBI's cache of parsed templates is shared between SQL Objects using the same file.
+     */
+    private static final ConcurrentMap<String, FreemarkerEngine> engines = new ConcurrentHashMap<>();
+
+    @Override
+    public void configureForType(final ConfigRegistry registry, final Annotation annotation, final Class<?> sqlObjectType)
+    {
+        final UseFreemarkerSqlLocator instance = (UseFreemarkerSqlLocator)annotation;
+
+        // Ignore the statementID if we're annotated on a type; it's only valid on methods
+        configure(registry, sqlObjectType, instance.templateLoc(), "", instance.allowUnusedBindings());
+    }
+
+    @Override
+    public void configureForMethod(final ConfigRegistry registry, final Annotation annotation, final Class<?> sqlObjectType, final Method method)
+    {
+        final UseFreemarkerSqlLocator instance = (UseFreemarkerSqlLocator)annotation;
+        configure(registry, sqlObjectType, instance.templateLoc(), instance.statementID(), instance.allowUnusedBindings());
+    }
+
+    private static void configure(final ConfigRegistry registry, final Class<?> sqlObjectType, final String templateLoc,
+                                  final String statementID, final boolean allowUnusedBindings)
+    {
+        final String templateFile = templateLoc.isEmpty() ? FreemarkerSqlLocator.getDefaultTemplatePath(sqlObjectType) : templateLoc;
+        registry.get(SqlObjects.class).setSqlLocator(new FreemarkerSqlLocator(
+                templateFile,
+                statementID.isEmpty() ? null : statementID));
+
+        FreemarkerEngine engine = engines.get(templateFile);
+        if (engine == null)
+        {
+            final FreemarkerEngine created = new FreemarkerEngine(null, templateFile);
+            engine = engines.putIfAbsent(templateFile, created);
+            if (engine == null) engine = created;
+        }
+        registry.get(SqlStatements.class).setTemplateEngine(engine);
+        if (allowUnusedBindings) registry.get(SqlStatements.class).setUnusedBindingAllowed(true);
+    }
+}
@@ -0,0 +1,152 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.skife.jdbi.v2.tweak.Argument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the values out of JDBI {@link org.skife.jdbi.v2.tweak.Argument}s so they can be used by our templates.
+ * <br/><br/>
+ * JDBI doesn't expose the value of a bound argument.  Its built-in arguments (which are package-private) keep it in a
+ * private field called {@code value}, so we resolve that field once per argument class into a
+ * {@link java.lang.invoke.MethodHandle}, and re-use it for every lookup after that.
+ */
+final class ArgumentValues
+{
+    private static Logger logger = LoggerFactory.getLogger(ArgumentValues.class);
+
+    /** JDBI's built-in arguments which store their bound value in a field called 'value' */
+    private static final String[] VALUE_ARGUMENTS = {
+        "ObjectArgument", "StringArgument", "IntegerArgument", "LongArgument", "ShortArgument", "ByteArgument",
+        "FloatArgument", "DoubleArgument", "BigDecimalArgument", "BooleanArgument", "BooleanIntegerArgument",
+        "CharacterArgument", "EnumArgument", "SqlDateArgument", "TimeArgument", "TimestampArgument",
+        "JavaDateArgument", "URLArgument", "ByteArrayArgument", "SqlTypeArgument", "BlobArgument", "ClobArgument",
+        "InputStreamArgument", "CharacterStreamArgument"
+    };
+
+    /** JDBI's built-in arguments which always bind null */
+    private static final String[] NULL_ARGUMENTS = { "NullArgument" };
+
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Argument.class);
+
+    private static final Accessor NULL_ACCESSOR = new Accessor()
+    {
+        @Override
+        Object get(final Argument argument)
+        {
+            return null;
+        }
+    };
+
+    private static final Map<Class<?>, Accessor> accessors = new ConcurrentHashMap<>();
+    static
+    {
+        for (final String name : VALUE_ARGUMENTS)
+        {
+            final Class<?> c = jdbiClass(name);
+            if (c != null) accessors.put(c, resolve(c));
+        }
+        for (final String name : NULL_ARGUMENTS)
+        {
+            final Class<?> c = jdbiClass(name);
+            if (c != null) accessors.put(c, NULL_ACCESSOR);
+        }
+    }
+
+    private ArgumentValues()
+    {
+    }
+
+    /**
+     * @return The value bound to the argument, or null if the argument is null or we don't know how to read it
+     */
+    static Object valueOf(final Argument argument)
+    {
+        if (argument == null) return null;
+
+        final Class<?> c = argument.getClass();
+        Accessor accessor = accessors.get(c);
+        if (accessor == null)
+        {
+            // Resolving twice under a race is harmless; both threads resolve the same accessor
+            accessor = resolve(c);
+            accessors.put(c, accessor);
+        }
+        return accessor.get(argument);
+    }
+
+    private static Class<?> jdbiClass(final String simpleName)
+    {
+        try
+        {
+            return Class.forName("org.skife.jdbi.v2." + simpleName, false, Argument.class.getClassLoader());
+        }
+        catch (ClassNotFoundException e)
+        {
+            logger.debug("JDBI argument class not found: {}", simpleName);
+            return null;
+        }
+    }
+
+    private static Accessor resolve(final Class<?> c)
+    {
+        try
+        {
+            final Field valueField = c.getDeclaredField("value");
+            valueField.setAccessible(true);
+            return new FieldAccessor(MethodHandles.lookup().unreflectGetter(valueField).asType(ACCESSOR_TYPE));
+        }
+        catch (NoSuchFieldException e)
+        {
+            logger.error("Unable to find 'value' field on argument: " + c.getName(), e); // could happen if JDBI changes the class structure
+        }
+        catch (IllegalAccessException | RuntimeException e)
+        {
+            logger.error("Unable to access 'value' field on argument: " + c.getName(), e);
+        }
+        return NULL_ACCESSOR;
+    }
+
+    /**
+     * Reads the value of a single argument class
+     */
+    private static abstract class Accessor
+    {
+        abstract Object get(final Argument argument);
+    }
+
+    private static final class FieldAccessor
+    extends Accessor
+    {
+        private final MethodHandle getter;
+
+        FieldAccessor(final MethodHandle getter)
+        {
+            this.getter = getter;
+        }
+
+        @Override
+        Object get(final Argument argument)
+        {
+            try
+            {
+                return (Object)getter.invokeExact(argument);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException("Unable to read argument value", t);
+            }
+        }
+    }
+}
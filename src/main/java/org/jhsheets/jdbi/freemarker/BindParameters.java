@@ -0,0 +1,229 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.core.Environment;
+import freemarker.template.Configuration;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.utility.DeepUnwrap;
+import org.skife.jdbi.v2.Binding;
+import org.skife.jdbi.v2.tweak.Argument;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Template methods which bind values to the statement as JDBI named parameters, rather than writing them into the
+ * SQL.  The SQL stays the same no matter what values are bound, so prepared statement and database plan caches work,
+ * and values can't inject SQL.
+ * <ul>
+ * <li><b>${bind(value)}</b> - binds the value, and writes a {@code :name} placeholder for it</li>
+ * <li><b>${bindIn(list)}</b> - binds each element of a list or array, and writes a comma separated list of
+ *     placeholders for use in an {@code IN (...)} clause.  The list is padded (by repeating its last element) up to the
+ *     next power of two, so the number of distinct statements stays small.  An empty list is an error, as there's no
+ *     list of placeholders which means the same thing in both {@code IN} and {@code NOT IN}; guard it in the
+ *     template, e.g. {@code <#if idList?has_content>}.</li>
+ * </ul>
+ * Example:
+ * <pre>
+ * {@code
+ * SELECT name FROM record WHERE id IN (${bindIn(idList)}) <#if name??>AND name = ${bind(name)}</#if>
+ * }
+ * </pre>
+ * The generated parameter names start with {@value #PREFIX}, and are numbered from zero in each render.
+ */
+final class BindParameters
+{
+    static final String BIND = "bind";
+    static final String BIND_IN = "bindIn";
+
+    /** The prefix of the names of parameters bound by a template */
+    static final String PREFIX = "__fm";
+
+    /** The environment attribute holding the state of the current render */
+    private static final String STATE = BindParameters.class.getName();
+
+    /** JDBI only lets its own classes add to a {@link Binding} */
+    private static final MethodHandle addNamed;
+    static
+    {
+        try
+        {
+            final Method m = Binding.class.getDeclaredMethod("addNamed", String.class, Argument.class);
+            m.setAccessible(true);
+            addNamed = MethodHandles.lookup().unreflect(m);
+        }
+        catch (NoSuchMethodException | IllegalAccessException e)
+        {
+            throw new ExceptionInInitializerError(e); // could happen if JDBI changes the class structure
+        }
+    }
+
+    private BindParameters()
+    {
+    }
+
+    /**
+     * Make the bind methods available to every template
+     */
+    static void register(final Configuration cfg)
+    {
+        cfg.setSharedVariable(BIND, new BindMethod());
+        cfg.setSharedVariable(BIND_IN, new BindInMethod());
+    }
+
+    /**
+     * Must be called before processing a template, so values are bound to the statement being located
+     */
+    static void prepare(final Environment env, final Binding binding)
+    {
+        env.setCustomAttribute(STATE, new State(binding));
+    }
+
+    /**
+     * @return true if the template being processed in the environment has bound any values
+     */
+    static boolean hasBound(final Environment env)
+    {
+        final State state = (State)env.getCustomAttribute(STATE);
+        return state != null && state.next > 0;
+    }
+
+    /**
+     * @return true if a template has bound any values to the binding; names are numbered from zero in each render
+     */
+    static boolean hasBound(final Binding binding)
+    {
+        return binding.forName(PREFIX + 0) != null;
+    }
+
+    /**
+     * @return The smallest power of two which fits the given number of elements
+     */
+    static int bucket(final int size)
+    {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static State currentState()
+    throws TemplateModelException
+    {
+        final Environment env = Environment.getCurrentEnvironment();
+        final Object state = env == null ? null : env.getCustomAttribute(STATE);
+        if (state == null) throw new TemplateModelException("Values can only be bound while locating a statement");
+        return (State)state;
+    }
+
+    private static Object unwrapArgument(final List arguments, final String method)
+    throws TemplateModelException
+    {
+        if (arguments.size() != 1) throw new TemplateModelException(method + "() takes exactly one argument");
+        return DeepUnwrap.unwrap((TemplateModel)arguments.get(0));
+    }
+
+
+    /**
+     * The parameters bound so far during a single render
+     */
+    private static final class State
+    {
+        private final Binding binding;
+        private int next = 0;
+
+        State(final Binding binding)
+        {
+            this.binding = binding;
+        }
+
+        /**
+         * Bind the value, and write its placeholder
+         */
+        void bind(final Object value, final StringBuilder sql)
+        throws TemplateModelException
+        {
+            if (binding == null) throw new TemplateModelException("The statement has no binding to add values to");
+
+            final String name = PREFIX + next++;
+            try
+            {
+                addNamed.invoke(binding, name, new BoundValueArgument(value));
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new TemplateModelException("Unable to bind parameter: " + name, t);
+            }
+            sql.append(':').append(name);
+        }
+    }
+
+    private static final class BindMethod
+    implements TemplateMethodModelEx
+    {
+        @Override
+        public Object exec(final List arguments)
+        throws TemplateModelException
+        {
+            final StringBuilder sql = new StringBuilder();
+            currentState().bind(unwrapArgument(arguments, BIND), sql);
+            return sql.toString();
+        }
+    }
+
+    private static final class BindInMethod
+    implements TemplateMethodModelEx
+    {
+        @Override
+        public Object exec(final List arguments)
+        throws TemplateModelException
+        {
+            final Collection<?> values = toCollection(unwrapArgument(arguments, BIND_IN));
+            if (values.isEmpty())
+            {
+                throw new TemplateModelException(BIND_IN + "() requires at least one value; check the list has content before binding it");
+            }
+
+            final State state = currentState();
+            final int size = bucket(values.size());
+            final StringBuilder sql = new StringBuilder(size * 8);
+
+            Object last = null;
+            final Iterator<?> it = values.iterator();
+            for (int i = 0; i < size; i++)
+            {
+                // Pad with the last value; repeating a value doesn't change the result of an IN clause
+                if (it.hasNext()) last = it.next();
+                if (i > 0) sql.append(", ");
+                state.bind(last, sql);
+            }
+            return sql.toString();
+        }
+
+        private static Collection<?> toCollection(final Object value)
+        throws TemplateModelException
+        {
+            if (value instanceof Collection) return (Collection<?>)value;
+            if (value instanceof Object[]) return Arrays.asList((Object[])value);
+            if (value != null && value.getClass().isArray())
+            {
+                final int length = Array.getLength(value);
+                final Object[] boxed = new Object[length];
+                for (int i = 0; i < length; i++)
+                {
+                    boxed[i] = Array.get(value, i);
+                }
+                return Arrays.asList(boxed);
+            }
+            throw new TemplateModelException(BIND_IN + "() requires a list or array");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.Argument;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * An argument bound by a template, rather than by the caller.  Binds the value the same way JDBI binds an
+ * {@link Object}.
+ */
+final class BoundValueArgument
+implements Argument
+{
+    private final Object value;
+
+    BoundValueArgument(final Object value)
+    {
+        this.value = value;
+    }
+
+    @Override
+    public void apply(final int position, final PreparedStatement statement, final StatementContext ctx)
+    throws SQLException
+    {
+        if (value == null)
+        {
+            statement.setNull(position, Types.OTHER);
+        }
+        else
+        {
+            statement.setObject(position, value);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.valueOf(value);
+    }
+}
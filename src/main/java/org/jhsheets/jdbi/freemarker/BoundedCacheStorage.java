@@ -0,0 +1,419 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.cache.CacheStorageWithGetSize;
+import freemarker.cache.ConcurrentCacheStorage;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A Freemarker template cache storage which holds a fixed number of compiled templates, and keeps the ones which are
+ * used most often.
+ * <br/><br/>
+ * Unlike a {@link freemarker.cache.SoftCacheStorage}, templates are never cleared by the garbage collector.  A soft
+ * cache can lose most of its templates in a single collection when the heap is under pressure, and then every one of
+ * them is read and compiled again at the worst possible time.  Here the number of templates held is fixed, so the
+ * memory used by the cache, and the compiling caused by evictions, can be predicted and tuned.
+ * <br/><br/>
+ * Every lookup is counted in a small, approximate frequency sketch, which also remembers templates that aren't in the
+ * cache, and is halved periodically so old popularity fades.  When the cache is full, the CLOCK algorithm picks a
+ * template which hasn't been used recently, and a new template only replaces it if the new one has been looked up
+ * more often.  So a burst of templates which are only used once (such as a precompile) can't push out the ones in
+ * regular use; a new template is cached once it's been asked for more often than the one it would replace.  Neither
+ * lookups nor evictions take a lock, so Freemarker doesn't synchronize on the storage.
+ * <br/><br/>
+ * Hit, miss and eviction counts are kept so the size can be tuned.  A configuration's statements are kept by
+ * {@link FreemarkerConfig#getTemplateCache()}, which sees every statement located, so its counts are the ones to
+ * tune with; the storage of Freemarker's own cache, {@code config.getConfiguration().getCacheStorage()}, only sees
+ * templates being loaded and fragments being included.
+ */
+public class BoundedCacheStorage
+implements CacheStorageWithGetSize, ConcurrentCacheStorage
+{
+    private static final AtomicReferenceFieldUpdater<Node, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+
+    private final int maximumSize;
+    private final ConcurrentMap<Object, Node> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /** Told about each entry evicted to make room for another, or null */
+    private final EvictionListener evictionListener;
+
+
+    /**
+     * @param maximumSize The most compiled templates to keep
+     */
+    public BoundedCacheStorage(final int maximumSize)
+    {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param evictionListener Told about each entry evicted to make room for another, on the thread adding it
+     */
+    BoundedCacheStorage(final int maximumSize, final EvictionListener evictionListener)
+    {
+        if (maximumSize <= 0) throw new IllegalArgumentException("The template cache must hold at least one template");
+        this.maximumSize = maximumSize;
+        this.sketch = new FrequencySketch(maximumSize);
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    public boolean isConcurrent()
+    {
+        return true;
+    }
+
+    @Override
+    public Object get(final Object key)
+    {
+        sketch.increment(key);
+
+        final Node node = entries.get(key);
+        if (node == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        node.referenced = true;
+        return node.value;
+    }
+
+    @Override
+    public void put(final Object key, final Object value)
+    {
+        add(key, value, true);
+    }
+
+    /**
+     * Add an entry unless the key already has one
+     *
+     * @return The key's existing value; or null if the value was added, or wasn't used enough to be admitted
+     */
+    Object putIfAbsent(final Object key, final Object value)
+    {
+        return add(key, value, false);
+    }
+
+    /**
+     * Replace the key's value, if it's still the expected one
+     */
+    boolean replace(final Object key, final Object expected, final Object value)
+    {
+        final Node node = entries.get(key);
+        return node != null && VALUE.compareAndSet(node, expected, value);
+    }
+
+    /**
+     * Remove the key's entry, if it still has the expected value
+     */
+    void remove(final Object key, final Object expected)
+    {
+        final Node node = entries.get(key);
+        if (node != null && node.value == expected && entries.remove(key, node)) removed(node);
+    }
+
+    /**
+     * @return A live view of the keys held
+     */
+    Set<Object> keys()
+    {
+        return entries.keySet();
+    }
+
+    /**
+     * @param replace Whether an existing value is replaced
+     * @return The key's existing value, or null if there wasn't one
+     */
+    private Object add(final Object key, final Object value, final boolean replace)
+    {
+        final Node existing = entries.get(key);
+        if (existing != null)
+        {
+            // A reloaded template keeps its place
+            if (replace) existing.value = value;
+            return existing.value;
+        }
+
+        if (size.get() >= maximumSize)
+        {
+            final Node victim = nextVictim();
+            if (victim != null)
+            {
+                if (sketch.frequency(key) <= sketch.frequency(victim.key))
+                {
+                    // The new template isn't used more than the one it would replace; it's compiled again if it is
+                    clock.offer(victim);
+                    rejections.incrementAndGet();
+                    return null;
+                }
+                if (entries.remove(victim.key, victim)) evicted(victim);
+            }
+        }
+
+        final Node node = new Node(key, value);
+        final Node previous = entries.putIfAbsent(key, node);
+        if (previous != null)
+        {
+            // Put by another thread in the meantime
+            if (replace) previous.value = value;
+            return previous.value;
+        }
+        clock.offer(node);
+        size.incrementAndGet();
+
+        // Threads putting at the same time may each have made room for one template
+        while (size.get() > maximumSize)
+        {
+            final Node victim = nextVictim();
+            if (victim == null) break;
+            if (entries.remove(victim.key, victim)) evicted(victim);
+        }
+        return null;
+    }
+
+    @Override
+    public void remove(final Object key)
+    {
+        final Node node = entries.remove(key);
+        if (node != null) removed(node);
+    }
+
+    @Override
+    public void clear()
+    {
+        for (final Object key : entries.keySet())
+        {
+            remove(key);
+        }
+    }
+
+    @Override
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    public int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    /**
+     * @return The number of lookups which found a template
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups which didn't find a template, and caused it to be loaded and compiled
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of templates removed to make room for others
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of compiled templates which weren't cached, as they were used less than the template they'd
+     *         have replaced
+     */
+    public long getRejectionCount()
+    {
+        return rejections.get();
+    }
+
+    /**
+     * @return The fraction of lookups which found a template, or 1 if there haven't been any
+     */
+    public double getHitRatio()
+    {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 1.0 : (double)hitCount / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BoundedCacheStorage{size=" + getSize() + ", maximumSize=" + maximumSize + ", hits=" + getHitCount()
+             + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+             + ", rejections=" + getRejectionCount() + "}";
+    }
+
+    /**
+     * Sweep the clock hand until a template which hasn't been used since the hand last passed it is found
+     *
+     * @return The template, which has been taken off the clock, or null if the cache is empty
+     */
+    private Node nextVictim()
+    {
+        Node node;
+        while ((node = clock.poll()) != null)
+        {
+            if (entries.get(node.key) != node) continue; // removed while the hand was moving
+
+            if (node.referenced)
+            {
+                node.referenced = false;
+                clock.offer(node); // second chance
+            }
+            else
+            {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void evicted(final Node node)
+    {
+        size.decrementAndGet();
+        evictions.incrementAndGet();
+        if (evictionListener != null) evictionListener.evicted(node.key, node.value);
+    }
+
+    private void removed(final Node node)
+    {
+        clock.remove(node);
+        size.decrementAndGet();
+    }
+
+
+    /**
+     * Told about the entries evicted to make room for others
+     */
+    interface EvictionListener
+    {
+        void evicted(Object key, Object value);
+    }
+
+
+    private static final class Node
+    {
+        final Object key;
+        volatile Object value;
+
+        /** Set when the template is used, and cleared when the clock hand passes it */
+        volatile boolean referenced;
+
+        Node(final Object key, final Object value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A count-min sketch of how often keys are looked up, with four 4-bit counters per key.  Once there have been ten
+     * lookups for every template the cache holds, all of the counters are halved.
+     * <br/><br/>
+     * Counts are approximate; collisions can only make them too high, and halving while another thread increments
+     * can lose the increment.
+     */
+    private static final class FrequencySketch
+    {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAX_COUNT = 15;
+
+        private final AtomicLongArray table;
+        private final int tableMask;
+        private final int sampleSize;
+        private final AtomicInteger samples = new AtomicInteger();
+
+        FrequencySketch(final int maximumSize)
+        {
+            // Each long holds 16 counters, so there are 16 counters for every template the cache can hold
+            final int length = Integer.highestOneBit(Math.max(1, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+            table = new AtomicLongArray(Math.max(length, 8));
+            tableMask = table.length() - 1;
+            sampleSize = (int)Math.min(10L * maximumSize, Integer.MAX_VALUE);
+        }
+
+        void increment(final Object key)
+        {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++)
+            {
+                added |= incrementAt(indexOf(hash, i), counterShift(hash, i));
+            }
+            if (added && samples.incrementAndGet() >= sampleSize) reset();
+        }
+
+        int frequency(final Object key)
+        {
+            final int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++)
+            {
+                frequency = Math.min(frequency, (int)((table.get(indexOf(hash, i)) >>> counterShift(hash, i)) & 0xf));
+            }
+            return frequency;
+        }
+
+        private boolean incrementAt(final int index, final int shift)
+        {
+            while (true)
+            {
+                final long current = table.get(index);
+                if (((current >>> shift) & 0xf) == MAX_COUNT) return false;
+                if (table.compareAndSet(index, current, current + (1L << shift))) return true;
+            }
+        }
+
+        private void reset()
+        {
+            samples.set(0);
+            for (int i = 0; i < table.length(); i++)
+            {
+                table.set(i, (table.get(i) >>> 1) & RESET_MASK);
+            }
+        }
+
+        private int indexOf(final int hash, final int i)
+        {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int)h & tableMask;
+        }
+
+        /** Which of the 16 counters in a long is used by the i'th hash */
+        private static int counterShift(final int hash, final int i)
+        {
+            return (((hash >>> (i << 3)) & 0xf) << 2);
+        }
+
+        private static int spread(final int hashCode)
+        {
+            int h = hashCode * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
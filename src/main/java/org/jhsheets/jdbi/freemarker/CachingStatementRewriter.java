@@ -0,0 +1,233 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.skife.jdbi.v2.Binding;
+import org.skife.jdbi.v2.ColonPrefixNamedParamStatementRewriter;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.exceptions.UnableToCreateStatementException;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.tweak.Argument;
+import org.skife.jdbi.v2.tweak.RewrittenStatement;
+import org.skife.jdbi.v2.tweak.StatementRewriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A {@link org.skife.jdbi.v2.tweak.StatementRewriter} which remembers how each SQL string was rewritten, so JDBI's
+ * {@link org.skife.jdbi.v2.ColonPrefixNamedParamStatementRewriter} doesn't tokenize the whole statement every time
+ * it's run.
+ * <br/><br/>
+ * The first time a SQL string is seen it's rewritten by JDBI's rewriter, and the resulting SQL and parameter names
+ * are cached, keyed by the SQL string, in a {@link BoundedCacheStorage}.  Statements are bound exactly the way JDBI
+ * binds them.  Statements without Freemarker markup are located as the same string every time, so their parsed
+ * result is kept on the compiled template instead, where it can't be evicted or refused by the cache, and lasts as
+ * long as the template.
+ * <br/><br/>
+ * JDBI doesn't expose the parameter names it finds, so they're read from its private fields, like
+ * {@link ArgumentValues}.  If that isn't possible every statement is rewritten by JDBI, without caching.
+ * <br/><br/>
+ * Enable it with {@link FreemarkerConfig.Builder#statementRewriteCache(int)}, and it's installed on every statement
+ * using a {@link FreemarkerTemplate}, in place of the DBI's rewriter.
+ */
+public class CachingStatementRewriter
+implements StatementRewriter
+{
+    private static Logger logger = LoggerFactory.getLogger(CachingStatementRewriter.class);
+
+    /** The fields of JDBI's rewritten statement which hold what we cache, or null if they can't be read */
+    private static final Field PARSED_FIELD;
+    private static final Field POSITIONAL_ONLY_FIELD;
+    private static final Field PARAMS_FIELD;
+    static
+    {
+        Field parsed = null;
+        Field positionalOnly = null;
+        Field params = null;
+        try
+        {
+            parsed = jdbiField("ColonPrefixNamedParamStatementRewriter$MyRewrittenStatement", "stmt");
+            positionalOnly = jdbiField("ColonPrefixNamedParamStatementRewriter$ParsedStatement", "positionalOnly");
+            params = jdbiField("ColonPrefixNamedParamStatementRewriter$ParsedStatement", "params");
+        }
+        catch (ClassNotFoundException | NoSuchFieldException | RuntimeException e)
+        {
+            // could happen if JDBI changes the class structure
+            logger.error("Unable to read JDBI's rewritten statements; statement rewrites won't be cached", e);
+            parsed = null;
+        }
+        PARSED_FIELD = parsed;
+        POSITIONAL_ONLY_FIELD = positionalOnly;
+        PARAMS_FIELD = params;
+    }
+
+    private final StatementRewriter delegate = new ColonPrefixNamedParamStatementRewriter();
+    private final BoundedCacheStorage cache;
+
+
+    /**
+     * @param maximumSize The most SQL strings to remember
+     */
+    public CachingStatementRewriter(final int maximumSize)
+    {
+        this.cache = new BoundedCacheStorage(maximumSize);
+    }
+
+    /**
+     * @return The cache of rewritten statements, with its hit, miss and eviction counts
+     */
+    public BoundedCacheStorage getCache()
+    {
+        return cache;
+    }
+
+    @Override
+    public RewrittenStatement rewrite(final String sql, final Binding params, final StatementContext ctx)
+    {
+        if (PARSED_FIELD == null) return delegate.rewrite(sql, params, ctx);
+
+        final CompiledStatement pinned = staticStatement(sql, ctx);
+        ParsedStatement parsed = (ParsedStatement)(pinned != null ? pinned.getRewrittenSql() : cache.get(sql));
+        if (parsed == null)
+        {
+            final RewrittenStatement rewritten = delegate.rewrite(sql, params, ctx);
+            parsed = parse(rewritten);
+            if (parsed == null) return rewritten;
+            if (pinned != null) pinned.setRewrittenSql(parsed);
+            else cache.put(sql, parsed);
+        }
+        return new CachedRewrittenStatement(parsed, ctx);
+    }
+
+    /**
+     * @return The static statement the SQL was located from, or null if it was rendered or not located by a
+     *         {@link FreemarkerTemplateLocator}
+     */
+    private static CompiledStatement staticStatement(final String sql, final StatementContext ctx)
+    {
+        final Object attached = ctx.getAttribute(CompiledStatement.ATTRIBUTE);
+        if (attached instanceof CompiledStatement == false) return null;
+
+        final CompiledStatement stmt = (CompiledStatement)attached;
+        return sql.equals(stmt.getStaticSql()) ? stmt : null;
+    }
+
+    /**
+     * @return What JDBI found in the statement, or null if it can't be read
+     */
+    private static ParsedStatement parse(final RewrittenStatement rewritten)
+    {
+        try
+        {
+            final Object stmt = PARSED_FIELD.get(rewritten);
+            final List<?> names = (List<?>)PARAMS_FIELD.get(stmt);
+            return new ParsedStatement(rewritten.getSql(), POSITIONAL_ONLY_FIELD.getBoolean(stmt), names.toArray(new String[names.size()]));
+        }
+        catch (IllegalAccessException | RuntimeException e)
+        {
+            logger.error("Unable to read JDBI's rewritten statement: " + rewritten.getSql(), e);
+            return null;
+        }
+    }
+
+    private static Field jdbiField(final String className, final String fieldName)
+    throws ClassNotFoundException, NoSuchFieldException
+    {
+        final Class<?> c = Class.forName("org.skife.jdbi.v2." + className, false, StatementRewriter.class.getClassLoader());
+        final Field field = c.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return field;
+    }
+
+
+    /**
+     * The SQL JDBI rewrote a statement to, and the names of its parameters in order
+     */
+    private static final class ParsedStatement
+    {
+        final String sql;
+        final boolean positionalOnly;
+        final String[] names;
+
+        ParsedStatement(final String sql, final boolean positionalOnly, final String[] names)
+        {
+            this.sql = sql;
+            this.positionalOnly = positionalOnly;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Binds a cached statement the same way as JDBI's own rewritten statements
+     */
+    private static final class CachedRewrittenStatement
+    implements RewrittenStatement
+    {
+        private final ParsedStatement parsed;
+        private final StatementContext context;
+
+        CachedRewrittenStatement(final ParsedStatement parsed, final StatementContext context)
+        {
+            this.parsed = parsed;
+            this.context = context;
+        }
+
+        @Override
+        public void bind(final Binding params, final PreparedStatement statement)
+        throws SQLException
+        {
+            if (parsed.positionalOnly)
+            {
+                // Bind every positional argument which has been set
+                Argument a;
+                for (int i = 0; (a = params.forPosition(i)) != null; i++)
+                {
+                    try
+                    {
+                        a.apply(i + 1, statement, context);
+                    }
+                    catch (SQLException e)
+                    {
+                        throw new UnableToExecuteStatementException(String.format("Exception while binding positional param at (0 based) position %d", i), e, context);
+                    }
+                }
+                return;
+            }
+
+            // As in JDBI, a "*" (a '?' among named parameters) isn't given a position of its own
+            int i = 0;
+            for (final String name : parsed.names)
+            {
+                if ("*".equals(name)) continue;
+
+                Argument a = params.forName(name);
+                if (a == null) a = params.forPosition(i);
+                if (a == null)
+                {
+                    throw new UnableToExecuteStatementException(String.format("Unable to execute, no named parameter matches \"%s\" and no positional " +
+                                                                              "param for place %d (which is %d in the JDBC 'start at 1' scheme) has been set.",
+                                                                              name, i, i + 1), context);
+                }
+
+                try
+                {
+                    a.apply(i + 1, statement, context);
+                }
+                catch (SQLException e)
+                {
+                    throw new UnableToCreateStatementException(String.format("Exception while binding '%s'", name), e, context);
+                }
+                i++;
+            }
+        }
+
+        @Override
+        public String getSql()
+        {
+            return parsed.sql;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.core.CustomAttribute;
+import freemarker.core.TemplateElement;
+import freemarker.core.TextBlock;
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.tree.TreeNode;
+
+/**
+ * What we know about a compiled statement, beyond the Freemarker {@link freemarker.template.Template} itself.
+ * <br/><br/>
+ * Statements that don't contain any Freemarker directives or interpolations have their SQL computed once when the
+ * template is compiled, rather than running the template every time the statement is located.  For all other
+ * statements we keep a running estimate of the rendered length, so output buffers can be sized up front, and the
+ * names of the bindings the template has read, for the {@link RenderCache}.  A statement which includes or imports
+ * other templates isn't cached by the render cache, as its output changes when they do.
+ * <br/><br/>
+ * This is stored on the compiled template itself, so it's discarded along with the template if it's ever evicted
+ * from Freemarker's cache.
+ */
+final class CompiledStatement
+{
+    /** The smallest buffer we'll render a dynamic statement into */
+    private static final int MIN_SIZE_HINT = 256;
+
+    private static final CustomAttribute compiled = new CustomAttribute(CustomAttribute.SCOPE_TEMPLATE);
+
+    /** The statement attribute a static statement is passed to the {@link CachingStatementRewriter} in */
+    static final String ATTRIBUTE = CompiledStatement.class.getName();
+
+    private final Template template;
+    private final String staticSql;
+
+    /** Whether the output only depends on this template and its bindings, and not on any other template */
+    private final boolean selfContained;
+
+    /** How the statement rewriter parsed the static SQL, so it's held for as long as the template is */
+    private volatile Object rewrittenSql;
+
+    /** Updated without synchronization; a lost update only makes the estimate slightly less accurate */
+    private int sizeHint = MIN_SIZE_HINT;
+
+    /** The sorted names of the bindings read by any render so far, or null if none have been recorded */
+    private final AtomicReference<List<String>> inputs = new AtomicReference<>();
+
+
+    private CompiledStatement(final Template template, final String staticSql, final boolean selfContained)
+    {
+        this.template = template;
+        this.staticSql = staticSql;
+        this.selfContained = selfContained;
+    }
+
+    /**
+     * @param cfg The configuration the template was compiled by, which decides whether whitespace is collapsed in the
+     *            static SQL; see {@link WhitespaceNormalizingWriter}
+     * @return The statement for the compiled template, inspecting the template the first time it's seen
+     */
+    static CompiledStatement of(final Template template, final FreemarkerConfig cfg)
+    throws TemplateException, IOException
+    {
+        CompiledStatement stmt = (CompiledStatement)compiled.get(template);
+        if (stmt == null)
+        {
+            final String staticSql = isStatic(template) ? cfg.normalizeWhitespace(render(template)) : null;
+            stmt = new CompiledStatement(template, staticSql, staticSql != null || isSelfContained(template, cfg));
+            compiled.set(stmt, template);
+        }
+        return stmt;
+    }
+
+    Template getTemplate()
+    {
+        return template;
+    }
+
+    /**
+     * @return The SQL produced by the template if it's made up entirely of static text, or null if the template must
+     *         be processed for every call
+     */
+    String getStaticSql()
+    {
+        return staticSql;
+    }
+
+    /**
+     * @return What the {@link CachingStatementRewriter} made of the static SQL, or null if it hasn't been rewritten
+     */
+    Object getRewrittenSql()
+    {
+        return rewrittenSql;
+    }
+
+    void setRewrittenSql(final Object rewrittenSql)
+    {
+        this.rewrittenSql = rewrittenSql;
+    }
+
+    /**
+     * @return true if the output only depends on the template and its bindings; false if it includes or imports other
+     *         templates, which can change without this one changing
+     */
+    boolean isSelfContained()
+    {
+        return selfContained;
+    }
+
+    /**
+     * @return The expected length of the rendered SQL
+     */
+    int getSizeHint()
+    {
+        return sizeHint;
+    }
+
+    /**
+     * Update the running estimate of the rendered length.  Grows immediately to fit larger output, and shrinks slowly.
+     */
+    void recordSize(final int length)
+    {
+        final int hint = sizeHint;
+        sizeHint = length >= hint ? length : Math.max(MIN_SIZE_HINT, hint - ((hint - length) >> 3));
+    }
+
+    /**
+     * @return The sorted names of the bindings read while rendering the template, or null if none have been recorded
+     */
+    List<String> getInputs()
+    {
+        return inputs.get();
+    }
+
+    /**
+     * Record the names read by a render
+     *
+     * @return The sorted names of the bindings read by all renders so far, including this one
+     */
+    List<String> addInputs(final Collection<String> names)
+    {
+        while (true)
+        {
+            final List<String> current = inputs.get();
+            if (current != null && current.containsAll(names)) return current;
+
+            final SortedSet<String> union = new TreeSet<>(names);
+            if (current != null) union.addAll(current);
+            final List<String> updated = Collections.unmodifiableList(new ArrayList<>(union));
+            if (inputs.compareAndSet(current, updated)) return updated;
+        }
+    }
+
+    /**
+     * A template that only contains text is parsed into a single {@link freemarker.core.TextBlock}; anything else
+     * (directives, interpolations, comments...) produces a different tree.
+     */
+    private static boolean isStatic(final Template template)
+    {
+        return template.getRootTreeNode() instanceof TextBlock
+            && template.getMacros().isEmpty()
+            && template.getImports().isEmpty();
+    }
+
+    /**
+     * @return true if the template doesn't include or import other templates, explicitly or through the
+     *         configuration's auto-imports and auto-includes
+     */
+    private static boolean isSelfContained(final Template template, final FreemarkerConfig cfg)
+    {
+        if (cfg.hasAutoIncludes() || template.getImports().isEmpty() == false) return false;
+        if (dependsOnOtherTemplates(template.getRootTreeNode())) return false;
+
+        // An auto-imported namespace is only used by statements which refer to it
+        final String canonical = template.getRootTreeNode().getCanonicalForm();
+        for (final String namespace : cfg.getAutoImportNamespaces())
+        {
+            if (canonical.contains(namespace)) return false;
+        }
+        return true;
+    }
+
+    private static boolean dependsOnOtherTemplates(final TemplateElement element)
+    {
+        // Freemarker's #include and #import elements aren't public classes
+        final String type = element.getClass().getName();
+        if (type.equals("freemarker.core.Include") || type.equals("freemarker.core.LibraryLoad")) return true;
+
+        for (int i = 0; i < element.getChildCount(); i++)
+        {
+            final TreeNode child = element.getChildAt(i);
+            if (child instanceof TemplateElement && dependsOnOtherTemplates((TemplateElement)child)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Let Freemarker produce the text so any whitespace handling it performs is identical to a normal render
+     */
+    private static String render(final Template template)
+    throws TemplateException, IOException
+    {
+        final StringWriter stringWriter = new StringWriter();
+        template.process(new SimpleHash(), stringWriter);
+        return stringWriter.toString();
+    }
+}
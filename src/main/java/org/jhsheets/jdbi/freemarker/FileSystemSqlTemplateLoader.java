@@ -0,0 +1,368 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * A template loader which reads our XML template files from directories on the file system, rather than from the
+ * class path.
+ * <br/><br/>
+ * Template paths are resolved against each directory in turn, and the first directory containing the file is used.
+ * The directories are watched with a {@link java.nio.file.WatchService}; when a file is created, modified or deleted
+ * only that file's statements are invalidated, and they're loaded again the next time one of them is used.  Checking
+ * whether a template is up to date never touches the file system, so the template update delay can be set to zero.
+ * A directory which doesn't exist yet is watched for through its nearest existing parent, and its files are found as
+ * soon as it's created.
+ * <br/><br/>
+ * Files which aren't found return a null template source, so this can be placed in front of a class path loader with
+ * a {@link freemarker.cache.MultiTemplateLoader}.  Use {@link FreemarkerConfig.Builder#templateDirectories(Path...)}
+ * to set that up.
+ * <br/><br/>
+ * Each loader watches its directories with a thread of its own, until it's {@link #close() closed}.
+ */
+public class FileSystemSqlTemplateLoader
+extends SqlTemplateLoader
+implements Closeable
+{
+    private static Logger logger = LoggerFactory.getLogger(FileSystemSqlTemplateLoader.class);
+
+    private final List<Path> directories;
+
+    /** The resolved location of each XML file which has been looked up, keyed by its template path */
+    private final Map<String, ResolvedFile> files = new ConcurrentHashMap<>();
+
+    /** Source of the version numbers reported as each file's last-modified time */
+    private final AtomicLong versions = new AtomicLong();
+
+    private final WatchService watchService;
+    private final Map<WatchKey, WatchedDirectory> watchKeys = new ConcurrentHashMap<>();
+
+    /** Template directories which don't exist yet, whose nearest existing parent is watched instead */
+    private final Set<Path> missingRoots = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final Thread watcher;
+
+    /** Compiled templates to forget when their file changes, if there are any */
+    private volatile TemplateRegistry registry;
+
+
+    /**
+     * @param directories The directories to read XML template files from, in the order they're searched
+     */
+    public FileSystemSqlTemplateLoader(final Path... directories)
+    throws IOException
+    {
+        this(Arrays.asList(directories), TemplateListener.NONE);
+    }
+
+    /**
+     * @param directories The directories to read XML template files from, in the order they're searched
+     * @param listener Notified as XML files are parsed and statements are loaded
+     */
+    public FileSystemSqlTemplateLoader(final List<Path> directories, final TemplateListener listener)
+    throws IOException
+    {
+        super(true, listener);
+        if (directories.isEmpty()) throw new IllegalArgumentException("You must specify at least one template directory");
+
+        final List<Path> roots = new ArrayList<>(directories.size());
+        for (final Path directory : directories)
+        {
+            roots.add(directory.toAbsolutePath().normalize());
+        }
+        this.directories = Collections.unmodifiableList(roots);
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (final Path root : this.directories)
+        {
+            if (watchRoot(root) == false) logger.warn("Template directory does not exist yet: {}", root);
+        }
+
+        watcher = new Thread(new Watcher(), "jdbi-freemarker-template-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public List<Path> getDirectories()
+    {
+        return directories;
+    }
+
+    void setRegistry(final TemplateRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object findTemplateSource(final String name)
+    throws IOException
+    {
+        return resolve(getTemplatePath(name)).path == null ? null : name;
+    }
+
+    /**
+     * @return The version of the XML file, which changes each time the file changes on disk
+     */
+    @Override
+    public long getLastModified(final Object templateSource)
+    {
+        return resolve(getTemplatePath(templateSource)).version;
+    }
+
+    @Override
+    protected URL getTemplateURL(final String templatePath)
+    throws IOException
+    {
+        final Path path = resolve(templatePath).path;
+        return path == null ? null : path.toUri().toURL();
+    }
+
+    /**
+     * Stop watching the template directories
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        watcher.interrupt();
+        watchService.close();
+    }
+
+    /**
+     * Find the file in the first directory which contains it.  The result is kept until the watcher sees a change to
+     * the file, so the file system is only searched once per file.
+     */
+    private ResolvedFile resolve(final String templatePath)
+    {
+        ResolvedFile resolved = files.get(templatePath);
+        if (resolved == null)
+        {
+            Path found = null;
+            for (final Path root : directories)
+            {
+                final Path path = root.resolve(templatePath).normalize();
+                if (path.startsWith(root) && Files.isRegularFile(path))
+                {
+                    found = path;
+                    break;
+                }
+            }
+
+            resolved = new ResolvedFile(found, versions.incrementAndGet());
+            files.put(templatePath, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Forget a changed file, so it's found and parsed again with a new version
+     */
+    private void changed(final String templatePath)
+    {
+        logger.info("XML template file changed: {}", templatePath);
+        files.remove(templatePath);
+        invalidate(templatePath);
+
+        final TemplateRegistry templates = registry;
+        if (templates != null) templates.invalidate(templatePath);
+    }
+
+    /**
+     * Watch a template directory; or if it doesn't exist, its nearest existing parent, so we can tell when it's created
+     *
+     * @return true if the template directory exists, and is being watched
+     */
+    private boolean watchRoot(final Path root)
+    throws IOException
+    {
+        while (true)
+        {
+            if (Files.isDirectory(root))
+            {
+                register(root, root);
+                missingRoots.remove(root);
+                return true;
+            }
+
+            Path parent = root.getParent();
+            while (parent != null && Files.isDirectory(parent) == false)
+            {
+                parent = parent.getParent();
+            }
+            if (parent == null) throw new NoSuchFileException(root.toString());
+
+            missingRoots.add(root);
+            final WatchKey key = parent.register(watchService, ENTRY_CREATE);
+            if (watchKeys.containsKey(key) == false) watchKeys.put(key, new WatchedDirectory(null, parent));
+
+            // Check it wasn't created before the parent was watched
+            if (Files.isDirectory(root) == false && Files.isDirectory(parent)) return false;
+        }
+    }
+
+    /**
+     * Start watching any missing template directories which a new directory has created, or is on the way to
+     */
+    private void createdDirectory(final Path directory)
+    {
+        for (final Path root : missingRoots)
+        {
+            if (root.startsWith(directory) == false) continue;
+            try
+            {
+                if (watchRoot(root))
+                {
+                    logger.info("Template directory created: {}", root);
+                    // Files which weren't found before may be in it now
+                    for (final String templatePath : new ArrayList<>(files.keySet()))
+                    {
+                        changed(templatePath);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to watch template directory: " + root, e);
+            }
+        }
+    }
+
+    /**
+     * Watch a directory, and all of the directories beneath it
+     */
+    private void register(final Path root, final Path directory)
+    throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+            throws IOException
+            {
+                final WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                watchKeys.put(key, new WatchedDirectory(root, dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return The template path of a file, relative to the template directory it's in
+     */
+    private static String toTemplatePath(final Path root, final Path file)
+    {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+
+    /**
+     * Waits for changes to the template directories, and invalidates the files that changed
+     */
+    private final class Watcher
+    implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final WatchKey key = watchService.take();
+                    final WatchedDirectory watched = watchKeys.get(key);
+                    if (watched != null) process(watched, key.pollEvents());
+                    if (key.reset() == false) watchKeys.remove(key);
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                logger.debug("Stopped watching template directories");
+            }
+        }
+
+        private void process(final WatchedDirectory watched, final List<WatchEvent<?>> events)
+        {
+            for (final WatchEvent<?> event : events)
+            {
+                if (event.kind() == OVERFLOW)
+                {
+                    // Events were lost, so we can't tell which files changed
+                    logger.warn("Missed changes to template directory: {}; reloading all XML template files", watched.directory);
+                    for (final String templatePath : new ArrayList<>(files.keySet()))
+                    {
+                        changed(templatePath);
+                    }
+                    continue;
+                }
+
+                final Path file = watched.directory.resolve((Path)event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(file))
+                {
+                    if (watched.root != null)
+                    {
+                        try
+                        {
+                            register(watched.root, file);
+                        }
+                        catch (IOException e)
+                        {
+                            logger.error("Unable to watch template directory: " + file, e);
+                        }
+                        // A directory created with its contents (e.g. by a move) has no events for the files inside it
+                        for (final String templatePath : new ArrayList<>(files.keySet()))
+                        {
+                            if (templatePath.startsWith(toTemplatePath(watched.root, file) + "/")) changed(templatePath);
+                        }
+                    }
+                    if (missingRoots.isEmpty() == false) createdDirectory(file);
+                    continue;
+                }
+
+                // Directories watched for a missing template directory aren't template directories themselves
+                if (watched.root != null) changed(toTemplatePath(watched.root, file));
+            }
+        }
+    }
+
+    /**
+     * Where an XML file was found (null if it wasn't), and the version reported for it
+     */
+    private static final class ResolvedFile
+    {
+        final Path path;
+        final long version;
+
+        ResolvedFile(final Path path, final long version)
+        {
+            this.path = path;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A watched directory, and the template directory it's beneath; or null if it's only watched for a missing
+     * template directory to be created
+     */
+    private static final class WatchedDirectory
+    {
+        final Path root;
+        final Path directory;
+
+        WatchedDirectory(final Path root, final Path directory)
+        {
+            this.root = root;
+            this.directory = directory;
+        }
+    }
+}
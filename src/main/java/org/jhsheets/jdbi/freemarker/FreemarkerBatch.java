@@ -0,0 +1,250 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.Update;
+import org.skife.jdbi.v2.exceptions.UnableToCreateStatementException;
+import org.skife.jdbi.v2.tweak.StatementLocator;
+
+import java.util.*;
+
+/**
+ * Runs a batch of rows through a Freemarker template, rendering the template once per distinct <i>shape</i> of the
+ * rows rather than once per row.
+ * <br/><br/>
+ * A row's shape is made up of the values of the bindings the template's output depends on; the shape bindings given
+ * to the constructor.  The template is rendered once for each distinct shape with only those values bound, rows are
+ * grouped by the SQL that was rendered for their shape, and each group is run as JDBC batches of up to
+ * {@link #withChunkSize(int) a chunk} of rows.  Every value in a row is bound to its part of the batch, so the SQL
+ * should refer to them with {@code :name} parameters.
+ * <br/><br/>
+ * Rows are read from the {@link Iterable} as they're needed, and a group's batch is sent to the database as soon as
+ * it's full, so only a chunk of rows for each distinct statement is held in memory at once, however many rows are
+ * loaded.
+ * <br/><br/>
+ * For example, with a statement that only writes the optional columns that are set:
+ * <pre>
+ * {@code
+ * new FreemarkerBatch("com/test/MyDao.xml", "insertRecord", "hasName").withChunkSize(500).execute(handle, rows);
+ * }
+ * </pre>
+ * The {@link FreemarkerTemplate} annotation can also be used on {@link org.skife.jdbi.v2.sqlobject.SqlBatch} methods,
+ * but JDBI renders the template once for the whole batch, so it can't see the values of individual rows.
+ * <br/><br/>
+ * {@code bind()} and {@code bindIn()} can't be used in batch templates, as their values would be bound to the batch
+ * rather than to each row; an {@link org.skife.jdbi.v2.exceptions.UnableToCreateStatementException} is thrown if the
+ * template calls them.
+ */
+public class FreemarkerBatch
+{
+    /** The most rows sent to the database in each JDBC batch, unless another {@link #withChunkSize(int) chunk size} is given */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final String templateFile;
+    private final String statementID;
+    private final FreemarkerConfig config;
+    private final List<String> shapeBindings;
+    private final int chunkSize;
+
+
+    /**
+     * Create a batch which uses the {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration}
+     *
+     * @param templateFile The path to the XML template file
+     * @param statementID The ID of the statement in the XML template file
+     * @param shapeBindings The names of the bindings the rendered SQL depends on.  If none are given, the template is
+     *                      rendered once for all rows.
+     * @see #withConfig(FreemarkerConfig)
+     */
+    public FreemarkerBatch(final String templateFile, final String statementID, final String... shapeBindings)
+    {
+        this(templateFile, statementID, null,
+             shapeBindings == null ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(shapeBindings)),
+             DEFAULT_CHUNK_SIZE);
+    }
+
+    private FreemarkerBatch(final String templateFile, final String statementID, final FreemarkerConfig config,
+                            final List<String> shapeBindings, final int chunkSize)
+    {
+        if (statementID == null || statementID.isEmpty()) throw new IllegalArgumentException("You cannot have a blank statement ID");
+        if (chunkSize <= 0) throw new IllegalArgumentException("A batch chunk must hold at least one row");
+
+        this.templateFile = templateFile;
+        this.statementID = statementID;
+        this.config = config;
+        this.shapeBindings = shapeBindings;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param config The configuration used to load and process the template. If null, we'll use the
+     *               {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration}
+     * @return A batch which runs the same statement with the given configuration
+     */
+    public FreemarkerBatch withConfig(final FreemarkerConfig config)
+    {
+        return new FreemarkerBatch(templateFile, statementID, config, shapeBindings, chunkSize);
+    }
+
+    /**
+     * @param chunkSize The most rows to send to the database in each JDBC batch
+     * @return A batch which runs the same statement in chunks of the given size
+     */
+    public FreemarkerBatch withChunkSize(final int chunkSize)
+    {
+        return new FreemarkerBatch(templateFile, statementID, config, shapeBindings, chunkSize);
+    }
+
+    /**
+     * @param handle The handle to run the batches on
+     * @param rows The values to bind for each row of the batch
+     * @return The update count of each row, in the same order as the rows
+     */
+    public int[] execute(final Handle handle, final Iterable<? extends Map<String, ?>> rows)
+    {
+        final FreemarkerTemplateLocator locator = new FreemarkerTemplateLocator(templateFile, statementID, config);
+
+        // Render once per shape; different shapes may still produce the same SQL
+        final Map<List<Object>, Group> shapes = new HashMap<>();
+        final Map<String, Group> statements = new LinkedHashMap<>();
+
+        int[] counts = new int[Math.min(chunkSize, 1024)];
+        int rowCount = 0;
+        for (final Map<String, ?> row : rows)
+        {
+            final List<Object> shape = getShape(row);
+            Group group = shapes.get(shape);
+            if (group == null)
+            {
+                final String sql = render(handle, locator, shape);
+                group = statements.get(sql);
+                if (group == null)
+                {
+                    group = new Group(sql);
+                    statements.put(sql, group);
+                }
+                shapes.put(shape, group);
+            }
+
+            if (rowCount == counts.length) counts = Arrays.copyOf(counts, counts.length * 2);
+            group.add(handle, row, rowCount++);
+            if (group.size == chunkSize) group.flush(counts);
+        }
+
+        for (final Group group : statements.values())
+        {
+            group.flush(counts);
+        }
+        return rowCount == counts.length ? counts : Arrays.copyOf(counts, rowCount);
+    }
+
+    private List<Object> getShape(final Map<String, ?> row)
+    {
+        final List<Object> shape = new ArrayList<>(shapeBindings.size());
+        for (final String name : shapeBindings)
+        {
+            shape.add(row.get(name));
+        }
+        return shape;
+    }
+
+    /**
+     * Render the template with only the shape's values bound.  A batch's own bindings are never visible through its
+     * statement context, so an update (which is never executed) supplies the context instead.
+     */
+    private String render(final Handle handle, final StatementLocator locator, final List<Object> shape)
+    {
+        final Update update = handle.createStatement(statementID);
+        for (int i = 0; i < shapeBindings.size(); i++)
+        {
+            update.bind(shapeBindings.get(i), shape.get(i));
+        }
+
+        final StatementContext ctx = update.getContext();
+        final String sql;
+        try
+        {
+            sql = locator.locate(statementID, ctx);
+        }
+        catch (Exception e)
+        {
+            throw new UnableToCreateStatementException("Unable to render statement: " + statementID + " in XML template file: " + templateFile, e, ctx);
+        }
+
+        // The values would be bound to the throwaway update, and the batch would fail to find their parameters
+        if (BindParameters.hasBound(ctx.getBinding()))
+        {
+            throw new UnableToCreateStatementException("Statement: " + statementID + " in XML template file: " + templateFile +
+                                                       " calls bind() or bindIn(), which can't be used in batch templates; use :name parameters instead", null, ctx);
+        }
+        return sql;
+    }
+
+    /**
+     * The rows waiting to be run with one of the rendered statements
+     */
+    private final class Group
+    {
+        private final String sql;
+        private PreparedBatch batch;
+
+        /** Where each row in the batch came from */
+        private int[] rows = new int[Math.min(chunkSize, 64)];
+        int size;
+
+        Group(final String sql)
+        {
+            this.sql = sql;
+        }
+
+        void add(final Handle handle, final Map<String, ?> row, final int index)
+        {
+            if (batch == null)
+            {
+                batch = handle.prepareBatch(statementID);
+                batch.setStatementLocator(new RenderedStatementLocator(sql));
+            }
+            batch.add(row);
+
+            if (size == rows.length) rows = Arrays.copyOf(rows, Math.min(size * 2, chunkSize));
+            rows[size++] = index;
+        }
+
+        /**
+         * Run the rows added so far as a single JDBC batch
+         */
+        void flush(final int[] counts)
+        {
+            if (size == 0) return;
+
+            final int[] batchCounts = batch.execute();
+            for (int i = 0; i < batchCounts.length; i++)
+            {
+                counts[rows[i]] = batchCounts[i];
+            }
+            batch = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * Hands an already rendered statement to JDBI
+     */
+    private static final class RenderedStatementLocator
+    implements StatementLocator
+    {
+        private final String sql;
+
+        RenderedStatementLocator(final String sql)
+        {
+            this.sql = sql;
+        }
+
+        @Override
+        public String locate(final String name, final StatementContext ctx)
+        {
+            return sql;
+        }
+    }
+}
@@ -0,0 +1,567 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.cache.CacheStorage;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.Version;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Freemarker {@link freemarker.template.Configuration} used to load and process our XML templates.
+ * <br/><br/>
+ * Use {@link #builder()} to create one, and {@link FreemarkerTemplateLocator#setDefaultConfig(FreemarkerConfig)} to
+ * make it the configuration used by the {@link FreemarkerTemplate} annotation.
+ * <br/><br/>
+ * In {@link Mode#DEVELOPMENT} mode (the default) the XML template files are checked for changes whenever a template's
+ * update delay expires.  In {@link Mode#PRODUCTION} mode templates are loaded once, and their files are never checked
+ * for changes.
+ * <br/><br/>
+ * If {@link Builder#templateDirectories(Path...) template directories} are given, XML template files are read from
+ * them first, and reloaded as soon as they change, whatever the mode.  The directories are watched by a thread of
+ * their own, so {@link #close()} a configuration with template directories once it's no longer used, such as after
+ * replacing it with {@link FreemarkerTemplateLocator#setDefaultConfig(FreemarkerConfig)}.
+ * <br/><br/>
+ * A configuration can also be used for everything run through a particular {@link org.skife.jdbi.v2.DBI} or
+ * {@link org.skife.jdbi.v2.Handle}, by defining it as the {@link #ATTRIBUTE} attribute:
+ * <pre>
+ * {@code
+ * dbi.define(FreemarkerConfig.ATTRIBUTE, config);
+ * }
+ * </pre>
+ * To give each application (class loader) its own configuration, see {@link FreemarkerConfigScopes}.
+ */
+public class FreemarkerConfig
+implements Closeable
+{
+    /** Runtime modes which control whether templates are reloaded when their XML file changes */
+    public enum Mode { PRODUCTION, DEVELOPMENT }
+
+    /** The statement attribute which overrides the configuration used by locators that weren't given one explicitly */
+    public static final String ATTRIBUTE = FreemarkerConfig.class.getName();
+
+    private final Mode mode;
+    private final Configuration configuration;
+    private final TemplateListener listener;
+    private final boolean reloading;
+    private final TemplateRegistry templates;
+    private final RenderCache renderCache;
+    private final Set<String> autoImportNamespaces;
+    private final boolean autoIncluding;
+    private final boolean normalizingWhitespace;
+    private final Set<WhitespaceNormalizingWriter.Option> whitespaceOptions;
+    private final SqlCardinalityAnalyzer cardinalityAnalyzer;
+    private final CachingStatementRewriter statementRewriter;
+    private final FileSystemSqlTemplateLoader fileSystemLoader;
+
+
+    private FreemarkerConfig(final Mode mode, final Configuration configuration, final TemplateListener listener,
+                             final boolean reloading, final TemplateRegistry templates, final RenderCache renderCache,
+                             final Set<String> autoImportNamespaces, final boolean autoIncluding,
+                             final boolean normalizingWhitespace, final Set<WhitespaceNormalizingWriter.Option> whitespaceOptions,
+                             final SqlCardinalityAnalyzer cardinalityAnalyzer,
+                             final CachingStatementRewriter statementRewriter, final FileSystemSqlTemplateLoader fileSystemLoader)
+    {
+        this.mode = mode;
+        this.configuration = configuration;
+        this.listener = listener;
+        this.reloading = reloading;
+        this.templates = templates;
+        this.renderCache = renderCache;
+        this.autoImportNamespaces = autoImportNamespaces;
+        this.autoIncluding = autoIncluding;
+        this.normalizingWhitespace = normalizingWhitespace;
+        this.whitespaceOptions = whitespaceOptions;
+        this.cardinalityAnalyzer = cardinalityAnalyzer;
+        this.statementRewriter = statementRewriter;
+        this.fileSystemLoader = fileSystemLoader;
+    }
+
+    /**
+     * @return A builder with the default settings; development mode with a {@link BoundedCacheStorage}
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @return The listener notified as templates are loaded and rendered; {@link TemplateListener#NONE} by default
+     */
+    public TemplateListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * @return true if templates may be reloaded after they're first loaded; false if a template can be held on to
+     *         once it's been compiled
+     */
+    public boolean isReloading()
+    {
+        return reloading;
+    }
+
+    /**
+     * Find a compiled template without going through Freemarker's synchronized template cache, once the template has
+     * been loaded.  Use this rather than {@link freemarker.template.Configuration#getTemplate(String)}.
+     *
+     * @param name The template name; see {@link SqlTemplateLoader#buildTemplateName(String, String)}
+     */
+    public Template getTemplate(final String name)
+    throws IOException
+    {
+        return templates.getTemplate(name);
+    }
+
+    /**
+     * @return The compiled statement templates which are kept, with hit, miss and eviction counts for every statement
+     *         located, to tune the {@link Builder#templateCacheSize(int) template cache size}
+     */
+    public BoundedCacheStorage getTemplateCache()
+    {
+        return templates.getStorage();
+    }
+
+    /**
+     * @return The cache of rendered SQL, or null if rendered SQL isn't cached
+     */
+    RenderCache getRenderCache()
+    {
+        return renderCache;
+    }
+
+    /**
+     * @return The namespaces of the {@link Builder#importFragment(String, String, String) imported fragments}
+     */
+    Set<String> getAutoImportNamespaces()
+    {
+        return autoImportNamespaces;
+    }
+
+    /**
+     * @return true if every template may include or import others without naming them; set by Freemarker's
+     *         auto_include and auto_import settings, whose namespaces aren't tracked
+     */
+    boolean hasAutoIncludes()
+    {
+        return autoIncluding;
+    }
+
+    /**
+     * @return true if insignificant whitespace is collapsed in the rendered SQL
+     * @see WhitespaceNormalizingWriter
+     */
+    public boolean isNormalizingWhitespace()
+    {
+        return normalizingWhitespace;
+    }
+
+    /**
+     * @return The syntax beyond standard SQL recognized when whitespace is collapsed
+     */
+    public Set<WhitespaceNormalizingWriter.Option> getWhitespaceOptions()
+    {
+        return whitespaceOptions;
+    }
+
+    /**
+     * @return The SQL with its whitespace collapsed, if the configuration collapses whitespace
+     */
+    String normalizeWhitespace(final String sql)
+    {
+        return normalizingWhitespace ? WhitespaceNormalizingWriter.normalize(sql, whitespaceOptions) : sql;
+    }
+
+    /**
+     * @return The analyzer counting the distinct SQL rendered by each statement, or null if there isn't one
+     */
+    public SqlCardinalityAnalyzer getCardinalityAnalyzer()
+    {
+        return cardinalityAnalyzer;
+    }
+
+    /**
+     * @return The rewriter installed on statements using a {@link FreemarkerTemplate}, or null to keep the DBI's
+     */
+    public CachingStatementRewriter getStatementRewriter()
+    {
+        return statementRewriter;
+    }
+
+    /**
+     * Stop watching the {@link Builder#templateDirectories(Path...) template directories}, if there are any.  The
+     * configuration can still be used, but changed files are no longer reloaded.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        if (fileSystemLoader != null) fileSystemLoader.close();
+    }
+
+    /**
+     * @return The Freemarker configuration.  This shouldn't be modified once it's in use.
+     */
+    public Configuration getConfiguration()
+    {
+        return configuration;
+    }
+
+
+    /**
+     * Builds a {@link FreemarkerConfig}
+     */
+    public static class Builder
+    {
+        /** Freemarker's own default; the number of seconds before a template's file is checked for changes */
+        private static final int DEFAULT_UPDATE_DELAY = 5;
+
+        /** The number of compiled templates kept by the default cache storage */
+        private static final int DEFAULT_TEMPLATE_CACHE_SIZE = 4096;
+
+        private Mode mode = Mode.DEVELOPMENT;
+        private CacheStorage cacheStorage = null;
+        private int templateCacheSize = DEFAULT_TEMPLATE_CACHE_SIZE;
+        private int templateUpdateDelay = DEFAULT_UPDATE_DELAY;
+        private Version incompatibleImprovements = null;
+        private ObjectWrapper objectWrapper = null;
+        private String defaultEncoding = null;
+        private String numberFormat = null;
+        private boolean whitespaceStripping = true;
+        private TemplateListener listener = TemplateListener.NONE;
+        private List<Path> templateDirectories = Collections.emptyList();
+        private final Map<String, String> fragmentImports = new LinkedHashMap<>();
+        private int renderCacheSize = 0;
+        private boolean normalizeWhitespace = false;
+        private Set<WhitespaceNormalizingWriter.Option> whitespaceOptions = Collections.emptySet();
+        private SqlCardinalityAnalyzer cardinalityAnalyzer = null;
+        private int statementRewriteCacheSize = 0;
+        private ClassLoader classLoader = null;
+        private final Map<String, String> settings = new LinkedHashMap<>();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * @param mode {@link Mode#PRODUCTION} to load templates once and never check their files for changes
+         */
+        public Builder mode(final Mode mode)
+        {
+            if (mode == null) throw new IllegalArgumentException("You must specify a mode");
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * @param cacheStorage The storage used by Freemarker's own template cache, which holds the fragments statements
+         *                     include, and the statements the {@link FreemarkerConfig#getTemplateCache() template
+         *                     cache} keeps.  Defaults to a {@link BoundedCacheStorage} of
+         *                     {@link #templateCacheSize(int)} templates.
+         */
+        public Builder cacheStorage(final CacheStorage cacheStorage)
+        {
+            this.cacheStorage = cacheStorage;
+            return this;
+        }
+
+        /**
+         * @param maximumSize The most compiled statements kept by the {@link FreemarkerConfig#getTemplateCache()
+         *                    template cache}, and by the default {@link #cacheStorage(freemarker.cache.CacheStorage)
+         *                    cache storage}; 4096 by default
+         */
+        public Builder templateCacheSize(final int maximumSize)
+        {
+            if (maximumSize <= 0) throw new IllegalArgumentException("The template cache must hold at least one template");
+            this.templateCacheSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * @param seconds The number of seconds before a template's file is checked for changes.  Ignored in
+         *                {@link Mode#PRODUCTION} mode.
+         */
+        public Builder templateUpdateDelay(final int seconds)
+        {
+            if (seconds < 0) throw new IllegalArgumentException("The template update delay cannot be negative");
+            this.templateUpdateDelay = seconds;
+            return this;
+        }
+
+        /**
+         * @see freemarker.template.Configuration#setIncompatibleImprovements(freemarker.template.Version)
+         */
+        public Builder incompatibleImprovements(final Version version)
+        {
+            this.incompatibleImprovements = version;
+            return this;
+        }
+
+        /**
+         * @param objectWrapper Wraps the values of statement bindings, and other objects, for templates.  Defaults to
+         *                      a {@link SqlObjectWrapper}, which is shared by every template.
+         * @see freemarker.template.Configuration#setObjectWrapper(freemarker.template.ObjectWrapper)
+         */
+        public Builder objectWrapper(final ObjectWrapper objectWrapper)
+        {
+            this.objectWrapper = objectWrapper;
+            return this;
+        }
+
+        /**
+         * @see freemarker.template.Configuration#setDefaultEncoding(String)
+         */
+        public Builder defaultEncoding(final String defaultEncoding)
+        {
+            this.defaultEncoding = defaultEncoding;
+            return this;
+        }
+
+        /**
+         * @param numberFormat The format used when interpolating numbers, e.g. {@code "computer"} to avoid grouping
+         *                     separators in generated SQL
+         * @see freemarker.template.Configuration#setNumberFormat(String)
+         */
+        public Builder numberFormat(final String numberFormat)
+        {
+            this.numberFormat = numberFormat;
+            return this;
+        }
+
+        /**
+         * @see freemarker.template.Configuration#setWhitespaceStripping(boolean)
+         */
+        public Builder whitespaceStripping(final boolean whitespaceStripping)
+        {
+            this.whitespaceStripping = whitespaceStripping;
+            return this;
+        }
+
+        /**
+         * @param listener Notified as templates are loaded and rendered
+         */
+        public Builder listener(final TemplateListener listener)
+        {
+            this.listener = listener == null ? TemplateListener.NONE : listener;
+            return this;
+        }
+
+        /**
+         * Read XML template files from directories on the file system before looking for them on the class path.
+         * The directories are watched, and a file's statements are reloaded as soon as it changes; this means the
+         * template update delay is ignored, and the class path is never checked for changes.
+         *
+         * @param directories The directories to read XML template files from, in the order they're searched
+         * @see FileSystemSqlTemplateLoader
+         */
+        public Builder templateDirectories(final Path... directories)
+        {
+            this.templateDirectories = Arrays.asList(directories);
+            return this;
+        }
+
+        /**
+         * Make a fragment's macros available to every statement, without an {@code <#import>}.  The fragment is
+         * compiled once, and shared by all of the statements.
+         *
+         * @param namespace The name statements use to call the fragment's macros, e.g. {@code <@common.paging/>}
+         * @param templateFile The path to the XML template file containing the fragment
+         * @param fragmentID The ID of the {@code <fragment>} element
+         * @see freemarker.template.Configuration#addAutoImport(String, String)
+         */
+        public Builder importFragment(final String namespace, final String templateFile, final String fragmentID)
+        {
+            this.fragmentImports.put(namespace, SqlTemplateLoader.buildTemplateName(templateFile, fragmentID));
+            return this;
+        }
+
+        /**
+         * Cache rendered SQL, keyed by the values each template reads from the statement's bindings.  A statement
+         * located again with the same values for those bindings returns the cached SQL without running the template.
+         * <br/><br/>
+         * Only renders which read strings, numbers, booleans, characters, enums, or small lists and arrays of them
+         * are cached, and renders which call {@code bind()} or {@code bindIn()} never are.  Statements which include
+         * or import other templates, or use an {@link #importFragment(String, String, String) imported fragment},
+         * aren't cached either.  Templates must not depend on anything other than their bindings, such as the
+         * current time.
+         *
+         * @param maximumSize The most rendered statements to keep, or 0 (the default) to turn the cache off
+         */
+        public Builder renderCache(final int maximumSize)
+        {
+            if (maximumSize < 0) throw new IllegalArgumentException("The render cache size cannot be negative");
+            this.renderCacheSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Collapse each run of whitespace in the rendered SQL to a single space, leaving string literals, quoted
+         * identifiers and comments as they are.  Statements without Freemarker markup are normalized once when
+         * they're compiled, and others as they're rendered.
+         *
+         * @param normalizeWhitespace true to collapse whitespace; false (the default) to leave the SQL as the
+         *                            template produces it
+         * @param options The syntax beyond standard SQL the database uses, such as MySQL's backslash escapes and
+         *                {@code #} comments, so their literals and comments are left alone
+         * @see WhitespaceNormalizingWriter
+         */
+        public Builder normalizeWhitespace(final boolean normalizeWhitespace, final WhitespaceNormalizingWriter.Option... options)
+        {
+            this.normalizeWhitespace = normalizeWhitespace;
+            final Set<WhitespaceNormalizingWriter.Option> set = EnumSet.noneOf(WhitespaceNormalizingWriter.Option.class);
+            Collections.addAll(set, options);
+            this.whitespaceOptions = Collections.unmodifiableSet(set);
+            return this;
+        }
+
+        /**
+         * @param cardinalityAnalyzer Counts the distinct SQL strings each located statement renders, and warns about
+         *                            statements which render too many
+         */
+        public Builder cardinalityAnalyzer(final SqlCardinalityAnalyzer cardinalityAnalyzer)
+        {
+            this.cardinalityAnalyzer = cardinalityAnalyzer;
+            return this;
+        }
+
+        /**
+         * Remember how JDBI rewrote the named parameters in each SQL string, rather than parsing every statement as
+         * it's run.  The cache is keyed by the rendered SQL, and statements which render many different strings are
+         * evicted by the bound.  Statements without markup keep their parsed SQL on the compiled template instead, so
+         * they're only parsed again when the template is recompiled.
+         *
+         * @param maximumSize The most SQL strings to remember, or 0 (the default) to leave statements to the DBI's
+         *                    statement rewriter
+         * @see CachingStatementRewriter
+         */
+        public Builder statementRewriteCache(final int maximumSize)
+        {
+            if (maximumSize < 0) throw new IllegalArgumentException("The statement rewrite cache size cannot be negative");
+            this.statementRewriteCacheSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Load XML template files through a class loader, rather than through the context class loader of the thread
+         * which locates the statement.  Each file's URL is only resolved once, and the class loader is only weakly
+         * referenced by the configuration.
+         *
+         * @param classLoader The class loader to load XML template files through, or null (the default) to use the
+         *                    thread's context class loader
+         */
+        public Builder classLoader(final ClassLoader classLoader)
+        {
+            this.classLoader = classLoader;
+            return this;
+        }
+
+        /**
+         * Apply any other Freemarker setting by name
+         *
+         * @see freemarker.template.Configuration#setSetting(String, String)
+         */
+        public Builder setting(final String name, final String value)
+        {
+            this.settings.put(name, value);
+            return this;
+        }
+
+        public FreemarkerConfig build()
+        {
+            return build(classLoader);
+        }
+
+        /**
+         * @param classLoader Overrides the builder's {@link #classLoader(ClassLoader) class loader}
+         */
+        FreemarkerConfig build(final ClassLoader classLoader)
+        {
+            final boolean production = mode == Mode.PRODUCTION;
+
+            final Configuration cfg = new Configuration();
+            if (incompatibleImprovements != null) cfg.setIncompatibleImprovements(incompatibleImprovements);
+            cfg.setCacheStorage(cacheStorage == null ? new BoundedCacheStorage(templateCacheSize) : cacheStorage);
+            cfg.setLocalizedLookup(false); // must keep this off, or freemarker will modify my source file names...
+            final FileSystemSqlTemplateLoader fileSystemLoader;
+            if (templateDirectories.isEmpty())
+            {
+                fileSystemLoader = null;
+                cfg.setTemplateLoader(new SqlTemplateLoader(production == false, listener, classLoader));
+                cfg.setTemplateUpdateDelay(production ? Integer.MAX_VALUE : templateUpdateDelay);
+            }
+            else
+            {
+                // Checking a watched file is free, so templates can be checked every time they're used
+                fileSystemLoader = createFileSystemLoader();
+                cfg.setTemplateLoader(new MultiTemplateLoader(new TemplateLoader[]{ fileSystemLoader, new SqlTemplateLoader(false, listener, classLoader) }));
+                cfg.setTemplateUpdateDelay(0);
+            }
+            cfg.setWhitespaceStripping(whitespaceStripping);
+            cfg.setObjectWrapper(objectWrapper != null ? objectWrapper : new SqlObjectWrapper(cfg.getIncompatibleImprovements()));
+            if (defaultEncoding != null) cfg.setDefaultEncoding(defaultEncoding);
+            if (numberFormat != null) cfg.setNumberFormat(numberFormat);
+            BindParameters.register(cfg);
+            for (final Map.Entry<String, String> fragment : fragmentImports.entrySet())
+            {
+                cfg.addAutoImport(fragment.getKey(), fragment.getValue());
+            }
+
+            for (final Map.Entry<String, String> setting : settings.entrySet())
+            {
+                try
+                {
+                    cfg.setSetting(setting.getKey(), setting.getValue());
+                }
+                catch (TemplateException e)
+                {
+                    throw new IllegalArgumentException("Invalid Freemarker setting: " + setting.getKey(), e);
+                }
+            }
+
+            // Watched files are removed from the registry when they change, so they don't need to be checked
+            final boolean checked = production == false && fileSystemLoader == null;
+            final TemplateRegistry templates = new TemplateRegistry(cfg, checked ? TimeUnit.SECONDS.toNanos(templateUpdateDelay) : TemplateRegistry.NEVER, templateCacheSize);
+            if (fileSystemLoader != null) fileSystemLoader.setRegistry(templates);
+
+            return new FreemarkerConfig(mode, cfg, listener, production == false || fileSystemLoader != null, templates,
+                                        renderCacheSize == 0 ? null : new RenderCache(renderCacheSize),
+                                        Collections.unmodifiableSet(new HashSet<>(fragmentImports.keySet())),
+                                        settings.containsKey(Configuration.AUTO_INCLUDE_KEY) || settings.containsKey(Configuration.AUTO_IMPORT_KEY),
+                                        normalizeWhitespace, whitespaceOptions,
+                                        cardinalityAnalyzer,
+                                        statementRewriteCacheSize == 0 ? null : new CachingStatementRewriter(statementRewriteCacheSize),
+                                        fileSystemLoader);
+        }
+
+        boolean hasTemplateDirectories()
+        {
+            return templateDirectories.isEmpty() == false;
+        }
+
+        private FileSystemSqlTemplateLoader createFileSystemLoader()
+        {
+            try
+            {
+                return new FileSystemSqlTemplateLoader(templateDirectories, listener);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException("Unable to watch template directories: " + templateDirectories, e);
+            }
+        }
+    }
+}
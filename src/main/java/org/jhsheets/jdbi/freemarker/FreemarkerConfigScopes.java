@@ -0,0 +1,130 @@
+package org.jhsheets.jdbi.freemarker;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A separate {@link FreemarkerConfig} for each class loader, built from the same settings.
+ * <br/><br/>
+ * When several applications share the library (for example when it's deployed to an application server rather than
+ * in each application), a single configuration would cache their templates together by file name, so identically
+ * named XML files from different applications collide, and it would hold on to the applications' classes after
+ * they're undeployed.  Instead each SQL Object's templates are loaded through the class loader of its interface,
+ * into a configuration of their own:
+ * <pre>
+ * {@code
+ * FreemarkerTemplateLocator.setDefaultScopes(new FreemarkerConfigScopes(FreemarkerConfig.builder().mode(Mode.PRODUCTION)));
+ * }
+ * </pre>
+ * Each configuration is held by the SQL Object types which use it, so it lasts as long as their class loader, however
+ * often the garbage collector runs, and is released along with it when the class loader is unloaded.  Finding a SQL
+ * Object's configuration doesn't take a lock; the configurations are only looked up by class loader the first time
+ * each type asks for one.
+ */
+public class FreemarkerConfigScopes
+{
+    private final FreemarkerConfig.Builder builder;
+
+    /** Each class loader's configuration, while a type or caller still holds it */
+    private final Map<ClassLoader, WeakReference<FreemarkerConfig>> configs = new WeakHashMap<>();
+
+    /**
+     * The configuration of each SQL Object type.  A class value is kept by the class, so it holds the configuration
+     * without keeping the class loader alive.
+     */
+    private final ClassValue<Scoped> types = new ClassValue<Scoped>()
+    {
+        @Override
+        protected Scoped computeValue(final Class<?> sqlObjectType)
+        {
+            final ClassLoader classLoader = sqlObjectType.getClassLoader();
+            return findConfig(classLoader == null ? ClassLoader.getSystemClassLoader() : classLoader);
+        }
+    };
+
+    /** Incremented when a class loader's configuration is released, so the types holding it look it up again */
+    private volatile int generation;
+
+
+    /**
+     * @param builder The settings of each class loader's configuration.  It shouldn't be modified afterwards, and can't
+     *                have template directories, as each configuration would watch them with a thread of its own.
+     */
+    public FreemarkerConfigScopes(final FreemarkerConfig.Builder builder)
+    {
+        if (builder == null) throw new IllegalArgumentException("You must specify a builder");
+        if (builder.hasTemplateDirectories()) throw new IllegalArgumentException("Template directories can't be used with class loader scoped configurations");
+        this.builder = builder;
+    }
+
+    /**
+     * @return The configuration for the class loader of a SQL Object type, which is kept for as long as the type is
+     */
+    public FreemarkerConfig getConfig(final Class<?> sqlObjectType)
+    {
+        Scoped scoped = types.get(sqlObjectType);
+        if (scoped.generation != generation)
+        {
+            types.remove(sqlObjectType);
+            scoped = types.get(sqlObjectType);
+        }
+        return scoped.config;
+    }
+
+    /**
+     * @return The configuration which loads XML template files through a class loader, building it if there isn't one.
+     *         It's shared with the SQL Object types of the class loader, but only kept while they, or the caller,
+     *         hold it.
+     */
+    public FreemarkerConfig getConfig(final ClassLoader classLoader)
+    {
+        return findConfig(classLoader).config;
+    }
+
+    private synchronized Scoped findConfig(final ClassLoader classLoader)
+    {
+        final WeakReference<FreemarkerConfig> ref = configs.get(classLoader);
+        FreemarkerConfig config = ref == null ? null : ref.get();
+        if (config == null)
+        {
+            config = builder.build(classLoader);
+            configs.put(classLoader, new WeakReference<>(config));
+        }
+        return new Scoped(config, generation);
+    }
+
+    /**
+     * Forget a class loader's configuration, e.g. when its application is undeployed.  Statements located afterwards
+     * get a new configuration.
+     */
+    public synchronized void release(final ClassLoader classLoader)
+    {
+        configs.remove(classLoader);
+        generation++;
+    }
+
+    /**
+     * @return The number of class loaders with a configuration which may still be in use
+     */
+    public synchronized int size()
+    {
+        return configs.size();
+    }
+
+
+    /**
+     * A configuration, and the generation of the scopes it was found in
+     */
+    private static final class Scoped
+    {
+        final FreemarkerConfig config;
+        final int generation;
+
+        Scoped(final FreemarkerConfig config, final int generation)
+        {
+            this.config = config;
+            this.generation = generation;
+        }
+    }
+}
@@ -1,62 +1,114 @@
 package org.jhsheets.jdbi.freemarker;
 
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlCall;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
 import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Take information about the class annotated with {@link FreemarkerTemplate}, and construct a
  * {@link org.jhsheets.jdbi.freemarker.FreemarkerSqlCustomizer} which will be used to find the
  * Freemarker template to apply.
+ * <br/><br/>
+ * JDBI asks its factory for the customizers every time a SQL Object method is called, so each customizer (and the
+ * locator it holds, with the template it last located) is created once and reused for every call.  JDBI keeps one
+ * factory per SQL Object method for as long as it keeps the method's handler, so the customizers are cached by the
+ * factory rather than statically, and don't hold on to SQL Object classes any longer than JDBI does.
  */
 public class FreemarkerLocatorFactory
 implements SqlStatementCustomizerFactory
 {
+    private final ConcurrentMap<Method, FreemarkerSqlCustomizer> methodCustomizers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, FreemarkerSqlCustomizer> typeCustomizers = new ConcurrentHashMap<>();
+
     /**
      * @param sqlObjectType
      * @return The path to the passed-in class, with '/' instead of '.'
      */
-    private String getDefaultTemplatePath(final Class sqlObjectType)
+    private static String getDefaultTemplatePath(final Class sqlObjectType)
     {
         return sqlObjectType.getName().replace(".", "/") + ".xml";
     }
 
+    /**
+     * See if we were passed-in the templateLoc file location.
+     * Default to a file with the same name as as the annotated class with an XML file extension
+     */
+    static String getTemplateLocation(final FreemarkerTemplate instance, final Class sqlObjectType)
+    {
+        return instance.templateLoc().isEmpty()
+             ? getDefaultTemplatePath(sqlObjectType)
+             : instance.templateLoc();
+    }
+
+    /**
+     * See if we were passed-in the name of the statement in the templateLoc file to use.
+     *
+     * @return The explicit statement ID, or null if the SQL name passed to the locator should be used
+     */
+    static String getStatementID(final FreemarkerTemplate instance)
+    {
+        return instance.statementID().isEmpty()
+             ? null
+             : instance.statementID();
+    }
+
+    /**
+     * @return The name JDBI passes to the statement locator for the method (the SQL annotation's value, or the method
+     *         name if it has none), or null if the method isn't a SQL method
+     */
+    static String getSqlName(final Method method)
+    {
+        final String value;
+        if (method.isAnnotationPresent(SqlQuery.class)) value = method.getAnnotation(SqlQuery.class).value();
+        else if (method.isAnnotationPresent(SqlUpdate.class)) value = method.getAnnotation(SqlUpdate.class).value();
+        else if (method.isAnnotationPresent(SqlBatch.class)) value = method.getAnnotation(SqlBatch.class).value();
+        else if (method.isAnnotationPresent(SqlCall.class)) value = method.getAnnotation(SqlCall.class).value();
+        else return null;
+
+        return SqlQuery.DEFAULT_VALUE.equals(value) ? method.getName() : value;
+    }
+
     @Override
     public SqlStatementCustomizer createForMethod(final Annotation annotation, final Class sqlObjectType, final Method method)
     {
-        final FreemarkerTemplate instance = (FreemarkerTemplate)annotation;
+        final FreemarkerSqlCustomizer cached = methodCustomizers.get(method);
+        if (cached != null) return cached;
 
-        // See if we were passed-in the templateLoc file location.
-        // Default to a file with the same name as as the annotated class with an XML file extension
-        final String templateLocation   = instance.templateLoc().isEmpty()
-                                        ? getDefaultTemplatePath(sqlObjectType)
-                                        : instance.templateLoc();
+        final FreemarkerTemplate instance = (FreemarkerTemplate)annotation;
 
-        // See if we were passed-in the name of the statement in the templateLoc file to use.
-        final String statementName      = instance.statementID().isEmpty()
-                                        ? null
-                                        : instance.statementID();
+        // Without an explicit statement ID, the statement is named after the method's SQL
+        final String templateLocation   = getTemplateLocation(instance, sqlObjectType);
+        final String statementName      = getStatementID(instance) == null ? getSqlName(method) : getStatementID(instance);
 
-        return new FreemarkerSqlCustomizer(templateLocation, statementName);
+        final FreemarkerSqlCustomizer customizer = new FreemarkerSqlCustomizer(templateLocation, statementName, sqlObjectType);
+        final FreemarkerSqlCustomizer existing = methodCustomizers.putIfAbsent(method, customizer);
+        return existing == null ? customizer : existing;
     }
 
     @Override
     public SqlStatementCustomizer createForType(final Annotation annotation, final Class sqlObjectType)
     {
+        final FreemarkerSqlCustomizer cached = typeCustomizers.get(sqlObjectType);
+        if (cached != null) return cached;
+
         final FreemarkerTemplate instance = (FreemarkerTemplate)annotation;
 
-        // See if we were passed-in the templateLoc file location.
-        // Default to a file with the same name as as the annotated class with an XML file extension
-        final String templateLocation   = instance.templateLoc().isEmpty()
-                                        ? sqlObjectType.getName() + ".xml"
-                                        : instance.templateLoc();
+        final String templateLocation   = getTemplateLocation(instance, sqlObjectType);
 
         // Ignore the statementID if we're annotated on a class; it's only valid on methods
         final String statementName      = null;
 
-        return new FreemarkerSqlCustomizer(templateLocation, statementName);
+        final FreemarkerSqlCustomizer customizer = new FreemarkerSqlCustomizer(templateLocation, statementName, sqlObjectType);
+        final FreemarkerSqlCustomizer existing = typeCustomizers.putIfAbsent((Class<?>)sqlObjectType, customizer);
+        return existing == null ? customizer : existing;
     }
 
     @Override
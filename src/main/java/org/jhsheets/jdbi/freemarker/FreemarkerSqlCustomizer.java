@@ -6,23 +6,35 @@ import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
 import java.sql.SQLException;
 
 /**
- * Associate a {@link FreemarkerTemplateLocator} with the statement
+ * Associate a {@link FreemarkerTemplateLocator} with the statement.  The same locator is used for every statement the
+ * customizer is applied to.  If the configuration has a {@link FreemarkerConfig.Builder#statementRewriteCache(int)
+ * statement rewrite cache}, its rewriter is used for the statement too.
  */
 public class FreemarkerSqlCustomizer
 implements SqlStatementCustomizer
 {
-    private final String templateLocation;
-    private final String statementName;
+    private final FreemarkerTemplateLocator locator;
 
     public FreemarkerSqlCustomizer(final String templateLocation, final String statementName)
     {
-        this.templateLocation = templateLocation;
-        this.statementName = statementName;
+        this.locator = new FreemarkerTemplateLocator(templateLocation, statementName);
+    }
+
+    /**
+     * @param sqlObjectType The SQL Object interface, whose class loader selects the configuration if
+     *                      {@link FreemarkerTemplateLocator#setDefaultScopes(FreemarkerConfigScopes) scopes} are set
+     */
+    public FreemarkerSqlCustomizer(final String templateLocation, final String statementName, final Class<?> sqlObjectType)
+    {
+        this.locator = FreemarkerTemplateLocator.forSqlObject(templateLocation, statementName, sqlObjectType);
     }
 
     @Override
     public void apply(final SQLStatement q) throws SQLException
     {
-        q.setStatementLocator( new FreemarkerTemplateLocator(templateLocation, statementName) );
+        q.setStatementLocator( locator );
+
+        final CachingStatementRewriter rewriter = locator.getStatementRewriter(q.getContext());
+        if (rewriter != null) q.setStatementRewriter(rewriter);
     }
 }
\ No newline at end of file
@@ -82,7 +82,14 @@ import java.lang.annotation.*;
  * <ul>
  * <li>this class doesn't use a normal Freemarker templateLoc.  It uses an XML format which contains Freemarker templates.
  * This was done to demarcate multiple templates within the same file.</li>
- * <li>It also isn't possible to reference/include other Freemarker templates.</li>
+ * <li>Other Freemarker templates can only be included or imported if they're statements in an XML template file.
+ * They're referenced by file and ID, either relative to the current file ({@code <#include "MyDao.xml#columns">}) or
+ * from the root of the class path ({@code <#import "/com/db/Common.xml#paging" as paging>}).  Shared pieces should be
+ * {@code <fragment>} elements, to show they aren't run on their own, but the element type isn't checked: any statement
+ * can be included, and a method whose name matches a fragment's ID will run the fragment.</li>
+ * <li>On {@link org.skife.jdbi.v2.sqlobject.SqlBatch} methods the template is rendered once for the whole batch, so it
+ * can only use values bound to the batch rather than to each row.  Use {@link FreemarkerBatch} to render a batch once
+ * per distinct shape of its rows.</li>
  * </ul>
  */
 @SqlStatementCustomizingAnnotation(FreemarkerLocatorFactory.class)
@@ -1,6 +1,6 @@
 package org.jhsheets.jdbi.freemarker;
 
-import freemarker.cache.SoftCacheStorage;
+import freemarker.core.Environment;
 import freemarker.template.*;
 import org.skife.jdbi.v2.Binding;
 import org.skife.jdbi.v2.StatementContext;
@@ -10,7 +10,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Attempt to find the XML Template file specified, and the given statement ID within the XML file.
@@ -18,60 +19,278 @@ import java.lang.reflect.Field;
  * Once found, we'll extract the contents for the statement, and transform it into a Freemarker
  * {@link freemarker.template.Template}.
  * <br/><br/>
- * Templates are cached using a {@link freemarker.cache.SoftCacheStorage}.
+ * Compiled templates are kept by the configuration's {@link FreemarkerConfig#getTemplateCache() template cache}.
  */
 public class FreemarkerTemplateLocator
 implements StatementLocator
 {
     private static Logger logger = LoggerFactory.getLogger(FreemarkerTemplateLocator.class);
 
-    private static Configuration cfg;
-    static
-    {
-        // Load a static freemarker configuration
-        cfg = new Configuration();
-        cfg.setTemplateLoader(new SqlTemplateLoader());
-        cfg.setCacheStorage(new SoftCacheStorage());
-        cfg.setLocalizedLookup(false); // must keep this off, or freemarker will modify my source file names...
-    }
+    /** The configuration used by locators which aren't given one explicitly */
+    private static volatile FreemarkerConfig defaultConfig = FreemarkerConfig.builder().build();
+
+    /** If set, locators for SQL Objects which aren't given a configuration use the one for the SQL Object's class loader */
+    private static volatile FreemarkerConfigScopes defaultScopes;
 
     private final String templateFile;
     private final String explicitStatementID;
+    private final FreemarkerConfig config;
+
+    /** The SQL Object interface the statement belongs to, or null if it isn't known */
+    private final Class<?> sqlObjectType;
+
+    /** The statement this locator last located */
+    private volatile ResolvedStatement resolved;
+
+
+    /**
+     * Replace the configuration used by locators which aren't given one explicitly, such as those created for the
+     * {@link FreemarkerTemplate} annotation.  This should be called at startup, before any statements are located.
+     * The previous configuration isn't closed, as it may still be used explicitly; close it if it watches template
+     * directories and is no longer needed.
+     */
+    public static void setDefaultConfig(final FreemarkerConfig config)
+    {
+        if (config == null) throw new IllegalArgumentException("You cannot have a null Freemarker configuration");
+        defaultConfig = config;
+    }
+
+    public static FreemarkerConfig getDefaultConfig()
+    {
+        return defaultConfig;
+    }
 
+    /**
+     * Give the SQL Objects of each class loader their own configuration, in place of the default configuration.  This
+     * should be called at startup, before any statements are located.
+     *
+     * @param scopes The configurations to use, or null to use the default configuration for every SQL Object
+     */
+    public static void setDefaultScopes(final FreemarkerConfigScopes scopes)
+    {
+        defaultScopes = scopes;
+    }
+
+    public static FreemarkerConfigScopes getDefaultScopes()
+    {
+        return defaultScopes;
+    }
+
+    /**
+     * @return The configuration used by the statements of a SQL Object which isn't given one explicitly; the one for
+     *         its class loader if {@link #setDefaultScopes(FreemarkerConfigScopes) scopes} are set, or the default
+     *         configuration
+     */
+    public static FreemarkerConfig getDefaultConfig(final Class<?> sqlObjectType)
+    {
+        final FreemarkerConfigScopes scopes = defaultScopes;
+        return scopes == null ? defaultConfig : scopes.getConfig(sqlObjectType);
+    }
+
+    /**
+     * Create a locator which uses the {@link #getDefaultConfig() default configuration}
+     *
+     * @see #FreemarkerTemplateLocator(String, String, FreemarkerConfig)
+     */
+    public FreemarkerTemplateLocator(final String templateFile, final String statementID)
+    {
+        this(templateFile, statementID, null);
+    }
 
     /**
      * @param templateFile The path to the XML template file.  Must be a valid path that can be resolved using the
      *                     class loader of the annotated class so it can be loaded using {@link java.lang.ClassLoader#getResource(String)}
      * @param statementID The ID of the statement in the XML Template file to apply as a Freemarker template. If null,
      *                    we'll use the method-name for the annotated class as the statement ID
+     * @param config The configuration used to load and process the template. If null, we'll use the
+     *               {@link #getDefaultConfig() default configuration} at the time the statement is located
      */
-    public FreemarkerTemplateLocator(final String templateFile, final String statementID)
+    public FreemarkerTemplateLocator(final String templateFile, final String statementID, final FreemarkerConfig config)
+    {
+        this(templateFile, statementID, config, null);
+    }
+
+    private FreemarkerTemplateLocator(final String templateFile, final String statementID, final FreemarkerConfig config,
+                                      final Class<?> sqlObjectType)
     {
         if (templateFile == null || templateFile.isEmpty()) throw new IllegalArgumentException("You cannot have a blank XML template file location");
 
         this.templateFile = templateFile;
         this.explicitStatementID = statementID;
+        this.config = config;
+        this.sqlObjectType = sqlObjectType;
+    }
+
+    /**
+     * Create a locator for a SQL Object's statement, which uses the configuration for the SQL Object's class loader if
+     * {@link #setDefaultScopes(FreemarkerConfigScopes) scopes} are set
+     */
+    static FreemarkerTemplateLocator forSqlObject(final String templateFile, final String statementID, final Class<?> sqlObjectType)
+    {
+        return new FreemarkerTemplateLocator(templateFile, statementID, null, sqlObjectType);
     }
 
     @Override
     public String locate(final String methodName, final StatementContext ctx)
     throws Exception
     {
-        // If there's no explicitly defined statement ID, then use the method name
-        final String statementID = explicitStatementID == null ? methodName : explicitStatementID;
+        final FreemarkerConfig activeConfig = getActiveConfig(ctx);
+
+        // Locators are normally used for a single statement, so the template name is only built the first time
+        ResolvedStatement stmt = resolved;
+        if (stmt == null || stmt.matches(activeConfig, methodName) == false)
+        {
+            // If there's no explicitly defined statement ID, then use the method name
+            final String statementID = explicitStatementID == null ? methodName : explicitStatementID;
+            stmt = new ResolvedStatement(activeConfig, explicitStatementID == null ? methodName : null, statementID,
+                                         SqlTemplateLoader.buildTemplateName(templateFile, statementID));
+            resolved = stmt;
+        }
 
-        // Lookup the template.  It'll either be in the Freemarker cache, or it'll have to look it up from file
-        final String fullStatementID = SqlTemplateLoader.buildTemplateName(templateFile, statementID);
-        final Template template = cfg.getTemplate( fullStatementID );
+        final String sql = activeConfig.getListener() == TemplateListener.NONE
+                         ? render(stmt.getTemplate(), ctx, activeConfig)
+                         : renderWithListener(stmt, ctx, activeConfig);
 
-        // Apply the template, and get the result as a string
-        final FreemarkerTemplateHashModel bindingWrapper = new FreemarkerTemplateHashModel( ctx.getBinding() );
-        final StringWriter stringWriter = new StringWriter();
-        template.process(bindingWrapper, stringWriter);
+        final SqlCardinalityAnalyzer analyzer = activeConfig.getCardinalityAnalyzer();
+        if (analyzer != null) analyzer.record(templateFile, stmt.statementID, stmt.templateName, sql);
+        return sql;
+    }
 
-        // Return the parsed template
-        final String processedTemplate = stringWriter.toString();
-        return processedTemplate;
+    /**
+     * @return The rewriter of the configuration the statement will be located with, or null if it doesn't have one
+     */
+    CachingStatementRewriter getStatementRewriter(final StatementContext ctx)
+    {
+        return getActiveConfig(ctx).getStatementRewriter();
+    }
+
+    /**
+     * @return The configuration given to the locator; or one attached to the statement's DBI or handle; or the one for
+     *         the SQL Object's class loader; or the default configuration
+     */
+    private FreemarkerConfig getActiveConfig(final StatementContext ctx)
+    {
+        if (config != null) return config;
+
+        final Object attached = ctx.getAttribute(FreemarkerConfig.ATTRIBUTE);
+        if (attached instanceof FreemarkerConfig) return (FreemarkerConfig)attached;
+
+        if (sqlObjectType == null) return defaultConfig;
+        return getDefaultConfig(sqlObjectType);
+    }
+
+    /**
+     * Render the statement, notifying the configuration's listener
+     */
+    private String renderWithListener(final ResolvedStatement stmt, final StatementContext ctx, final FreemarkerConfig activeConfig)
+    throws TemplateException, IOException
+    {
+        final TemplateListener listener = activeConfig.getListener();
+
+        // Time the lookup, and see if the loader had to load the template
+        SqlTemplateLoader.consumeLoaded();
+        final long start = System.nanoTime();
+        final Template template = stmt.getTemplate();
+        final long found = System.nanoTime();
+        if (SqlTemplateLoader.consumeLoaded())
+        {
+            listener.onCacheMiss(templateFile, stmt.statementID);
+            listener.onCompile(templateFile, stmt.statementID, found - start);
+        }
+        else
+        {
+            listener.onCacheHit(templateFile, stmt.statementID);
+        }
+
+        final String sql = render(template, ctx, activeConfig);
+        listener.onRender(templateFile, stmt.statementID, System.nanoTime() - found, sql.length());
+        return sql;
+    }
+
+    private String render(final Template template, final StatementContext ctx, final FreemarkerConfig activeConfig)
+    throws TemplateException, IOException
+    {
+        // Statements without any Freemarker markup always produce the same SQL, so there's no need to process them
+        final CompiledStatement stmt = CompiledStatement.of(template, activeConfig);
+        if (stmt.getStaticSql() != null)
+        {
+            // Let the rewriter keep its parse on the statement, rather than in its bounded cache
+            if (activeConfig.getStatementRewriter() != null) ctx.setAttribute(CompiledStatement.ATTRIBUTE, stmt);
+            return stmt.getStaticSql();
+        }
+
+        // The key doesn't cover included templates, which can change without this one changing
+        final RenderCache renderCache = stmt.isSelfContained() ? activeConfig.getRenderCache() : null;
+        if (renderCache != null)
+        {
+            final String cached = renderCache.get(stmt, ctx.getBinding());
+            if (cached != null) return cached;
+        }
+
+        // Apply the template into this thread's buffer, sized for what this statement usually produces
+        final RenderBuffer buffer = RenderBuffer.acquire(stmt.getSizeHint());
+        try
+        {
+            final FreemarkerTemplateHashModel bindingWrapper = new FreemarkerTemplateHashModel( ctx.getBinding(), template.getObjectWrapper(), renderCache != null );
+            final Writer out = activeConfig.isNormalizingWhitespace() ? new WhitespaceNormalizingWriter(buffer, activeConfig.getWhitespaceOptions()) : buffer;
+            final Environment env = template.createProcessingEnvironment(bindingWrapper, out);
+            BindParameters.prepare(env, ctx.getBinding());
+            env.process();
+            stmt.recordSize(buffer.length());
+
+            // Return the parsed template
+            final String sql = buffer.toString();
+            if (renderCache != null && BindParameters.hasBound(env) == false)
+            {
+                renderCache.put(stmt, bindingWrapper.accessed, ctx.getBinding(), sql);
+            }
+            return sql;
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+
+    /**
+     * A statement resolved to its template name for a configuration.  If the configuration never reloads templates, the
+     * compiled template is held on to once it's loaded, so the Freemarker cache isn't consulted again.
+     */
+    private static final class ResolvedStatement
+    {
+        final FreemarkerConfig config;
+        final String sqlName;
+        final String statementID;
+        final String templateName;
+        private volatile Template template;
+
+        /**
+         * @param sqlName The name passed to the locator, or null if the statement ID was given explicitly
+         */
+        ResolvedStatement(final FreemarkerConfig config, final String sqlName, final String statementID, final String templateName)
+        {
+            this.config = config;
+            this.sqlName = sqlName;
+            this.statementID = statementID;
+            this.templateName = templateName;
+        }
+
+        boolean matches(final FreemarkerConfig activeConfig, final String methodName)
+        {
+            return config == activeConfig && (sqlName == null || sqlName.equals(methodName));
+        }
+
+        Template getTemplate()
+        throws IOException
+        {
+            Template found = template;
+            if (found == null)
+            {
+                found = config.getTemplate(templateName);
+                if (config.isReloading() == false) template = found;
+            }
+            return found;
+        }
     }
 
     /**
@@ -83,36 +302,32 @@ implements StatementLocator
     implements TemplateHashModel
     {
         private final Binding bindings;
+        private final ObjectWrapper wrapper;
+
+        /** The keys the template has looked up, if they're being tracked */
+        final Set<String> accessed;
 
-        public FreemarkerTemplateHashModel(final Binding bindings)
+        public FreemarkerTemplateHashModel(final Binding bindings, final ObjectWrapper wrapper, final boolean trackAccess)
         {
             this.bindings = bindings;
+            this.wrapper = wrapper;
+            this.accessed = trackAccess ? new HashSet<String>() : null;
         }
 
         @Override
         public TemplateModel get(final String key)
         throws TemplateModelException
         {
-            // TODO: request a JDBI change that exposes a geValue() method on Argument so I don't need to reflect....
+            if (accessed != null) accessed.add(key);
 
-            Object o = null;
+            // TODO: request a JDBI change that exposes a geValue() method on Argument so I don't need to reflect....
             final Argument a = bindings == null ? null : bindings.forName(key);
-            // No clue why JDBI decided to make bound variables so inaccessible....
-            final Class c = a.getClass();
-
-            // This should be an ArgumentObject (which is package-private), which has a field called value (private)
-            try {
-                final Field valueField = c.getDeclaredField("value");
-                valueField.setAccessible(true);
-                o = valueField.get(a);
-            } catch (NoSuchFieldException e) {
-                logger.error("Unable to find 'value' field", e); // could happen if JDBI changes the class structure
-            } catch (IllegalAccessException e) {
-                logger.error("Unable to access 'value' field.", e);
-            }
 
-            // Use Freemarkers object wrapper to figure out the correct TemplateModel to wrap one of the items in our bindings
-            return new DefaultObjectWrapper().wrap( o );
+            // Returning null lets Freemarker treat unbound keys as undefined, so they work with the ?? and ! operators
+            if (a == null) return null;
+
+            // Use the configuration's object wrapper to figure out the correct TemplateModel to wrap one of the items in our bindings
+            return wrapper.wrap( ArgumentValues.valueOf(a) );
         }
 
         @Override
@@ -0,0 +1,76 @@
+package org.jhsheets.jdbi.freemarker;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TemplateListener} which records events in a Dropwizard Metrics {@link com.codahale.metrics.MetricRegistry}.
+ * <br/><br/>
+ * Metrics are named {@code <prefix>.<templateFile>.<metric>} for XML parsing, and
+ * {@code <prefix>.<templateFile>#<statementID>.<metric>} for everything else:
+ * <ul>
+ * <li><b>parse</b> - timer of XML template file parses</li>
+ * <li><b>compile</b> - timer of template loads and compiles</li>
+ * <li><b>cache-hits</b>, <b>cache-misses</b> - meters of template cache lookups</li>
+ * <li><b>render</b> - timer of rendering the statement</li>
+ * <li><b>sql-length</b> - histogram of the length of the rendered SQL</li>
+ * </ul>
+ * The metrics library is an optional dependency, and must be added to your project to use this class.
+ */
+public class MetricsTemplateListener
+extends TemplateListenerAdapter
+{
+    private final MetricRegistry registry;
+    private final String prefix;
+
+    /**
+     * Name metrics using this class' name as a prefix
+     */
+    public MetricsTemplateListener(final MetricRegistry registry)
+    {
+        this(registry, MetricsTemplateListener.class.getName());
+    }
+
+    public MetricsTemplateListener(final MetricRegistry registry, final String prefix)
+    {
+        this.registry = registry;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void onXmlParse(final String templateFile, final int statementCount, final long nanos)
+    {
+        registry.timer(MetricRegistry.name(prefix, templateFile, "parse")).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onCompile(final String templateFile, final String statementID, final long nanos)
+    {
+        registry.timer(name(templateFile, statementID, "compile")).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onCacheHit(final String templateFile, final String statementID)
+    {
+        registry.meter(name(templateFile, statementID, "cache-hits")).mark();
+    }
+
+    @Override
+    public void onCacheMiss(final String templateFile, final String statementID)
+    {
+        registry.meter(name(templateFile, statementID, "cache-misses")).mark();
+    }
+
+    @Override
+    public void onRender(final String templateFile, final String statementID, final long nanos, final int sqlLength)
+    {
+        registry.timer(name(templateFile, statementID, "render")).update(nanos, TimeUnit.NANOSECONDS);
+        registry.histogram(name(templateFile, statementID, "sql-length")).update(sqlLength);
+    }
+
+    private String name(final String templateFile, final String statementID, final String metric)
+    {
+        return MetricRegistry.name(prefix, SqlTemplateLoader.buildTemplateName(templateFile, statementID), metric);
+    }
+}
@@ -0,0 +1,125 @@
+package org.jhsheets.jdbi.freemarker;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * An unsynchronized {@link java.io.Writer} which templates are rendered into.
+ * <br/><br/>
+ * Each thread keeps one buffer and re-uses it for every render, so rendering doesn't allocate and re-grow a new
+ * buffer for every statement.  Buffers that grow beyond {@link #MAX_RETAINED} characters are discarded after use, so
+ * an occasional huge statement doesn't pin memory to the thread.
+ */
+final class RenderBuffer
+extends Writer
+{
+    /** The largest buffer kept for re-use by a thread */
+    static final int MAX_RETAINED = 64 * 1024;
+
+    private static final ThreadLocal<RenderBuffer> buffers = new ThreadLocal<>();
+
+    private char[] chars;
+    private int length;
+    private boolean inUse;
+
+
+    private RenderBuffer(final int capacity)
+    {
+        this.chars = new char[capacity];
+    }
+
+    /**
+     * @param sizeHint The expected length of the output
+     * @return An empty buffer for the current thread.  It must be given back with {@link #release()}.
+     */
+    static RenderBuffer acquire(final int sizeHint)
+    {
+        RenderBuffer buffer = buffers.get();
+        if (buffer == null)
+        {
+            buffer = new RenderBuffer(sizeHint);
+            buffers.set(buffer);
+        }
+        else if (buffer.inUse)
+        {
+            // A template is being rendered while rendering another on this thread; don't share the buffer
+            return new RenderBuffer(sizeHint);
+        }
+
+        buffer.inUse = true;
+        buffer.length = 0;
+        buffer.ensureCapacity(sizeHint);
+        return buffer;
+    }
+
+    /**
+     * Give the buffer back to the thread, once its contents are no longer needed
+     */
+    void release()
+    {
+        if (inUse == false) return;
+
+        inUse = false;
+        if (chars.length > MAX_RETAINED) buffers.remove();
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity > chars.length)
+        {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length << 1));
+        }
+    }
+
+    @Override
+    public void write(final int c)
+    {
+        ensureCapacity(length + 1);
+        chars[length++] = (char)c;
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len)
+    {
+        ensureCapacity(length + len);
+        System.arraycopy(cbuf, off, chars, length, len);
+        length += len;
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len)
+    {
+        ensureCapacity(length + len);
+        str.getChars(off, off + len, chars, length);
+        length += len;
+    }
+
+    @Override
+    public Writer append(final CharSequence csq)
+    {
+        final String s = String.valueOf(csq);
+        write(s, 0, s.length());
+        return this;
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(chars, 0, length);
+    }
+}
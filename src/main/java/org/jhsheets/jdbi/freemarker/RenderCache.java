@@ -0,0 +1,221 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.template.Template;
+import org.skife.jdbi.v2.Binding;
+import org.skife.jdbi.v2.tweak.Argument;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of rendered SQL, keyed by the values a template actually reads.
+ * <br/><br/>
+ * While a statement is rendered, the names the template looks up in the statement's bindings are recorded, and each
+ * statement keeps the names read by all of its renders so far.  The rendered SQL is cached under the current values
+ * of those names.  A later call whose values are equal for every one of those names would run the template down the
+ * same path and produce the same SQL, so the cached SQL is returned without running the template.
+ * <br/><br/>
+ * Only values which can't change underneath the cache are used as keys: strings, numbers, booleans, characters,
+ * enums, and small lists or arrays of them.  Renders which read anything else, or which bind values with
+ * {@code bind()} or {@code bindIn()}, aren't cached.  Templates must only depend on their bindings, and not on
+ * things like the current time.
+ * <br/><br/>
+ * The key only covers the statement's own template, so statements which include or import other templates (including
+ * the configuration's imported fragments they use) aren't cached; their SQL changes when those templates are edited.
+ * <br/><br/>
+ * When the cache is full, entries are evicted with the CLOCK algorithm; an approximation of least-recently-used which
+ * doesn't need a lock.
+ */
+final class RenderCache
+{
+    /** Lists longer than this aren't used as keys, as they'd take more memory than they save */
+    private static final int MAX_KEY_ELEMENTS = 256;
+
+    /** Returned by {@link #snapshot(Object)} for values which can't be part of a key */
+    private static final Object UNCACHEABLE = new Object();
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigInteger.class, BigDecimal.class));
+
+    private final int maximumSize;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Key> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * @param maximumSize The most rendered statements to keep
+     */
+    RenderCache(final int maximumSize)
+    {
+        if (maximumSize <= 0) throw new IllegalArgumentException("The render cache must hold at least one statement");
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return The SQL previously rendered for the same inputs, or null if there isn't any
+     */
+    String get(final CompiledStatement stmt, final Binding binding)
+    {
+        final List<String> inputs = stmt.getInputs();
+        if (inputs == null) return null; // never rendered
+
+        final Key key = Key.of(stmt.getTemplate(), inputs, binding);
+        final Entry entry = key == null ? null : entries.get(key);
+        if (entry == null) return null;
+
+        entry.referenced = true;
+        return entry.sql;
+    }
+
+    /**
+     * @param inputs The names the template read while rendering the SQL
+     */
+    void put(final CompiledStatement stmt, final Set<String> inputs, final Binding binding, final String sql)
+    {
+        final Key key = Key.of(stmt.getTemplate(), stmt.addInputs(inputs), binding);
+        if (key == null || entries.putIfAbsent(key, new Entry(sql)) != null) return;
+
+        clock.offer(key);
+        if (size.incrementAndGet() > maximumSize) evict();
+    }
+
+    int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Sweep the clock hand until an entry which hasn't been used since it was last passed is found
+     */
+    private void evict()
+    {
+        Key key;
+        while ((key = clock.poll()) != null)
+        {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.referenced)
+            {
+                entry.referenced = false;
+                clock.offer(key); // second chance
+            }
+            else
+            {
+                if (entry != null) entries.remove(key);
+                size.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the value which can be compared with later values, or {@link #UNCACHEABLE}
+     */
+    private static Object snapshot(final Object value)
+    {
+        if (value == null || value instanceof Enum || IMMUTABLE_TYPES.contains(value.getClass())) return value;
+
+        final int length;
+        final Iterator<?> elements;
+        if (value instanceof Collection)
+        {
+            length = ((Collection<?>)value).size();
+            elements = ((Collection<?>)value).iterator();
+        }
+        else if (value.getClass().isArray())
+        {
+            length = Array.getLength(value);
+            elements = null;
+        }
+        else
+        {
+            return UNCACHEABLE;
+        }
+        if (length > MAX_KEY_ELEMENTS) return UNCACHEABLE;
+
+        // Keep the type, as templates can treat lists and other collections differently
+        final List<Object> copy = new ArrayList<>(length + 1);
+        copy.add(value.getClass());
+        for (int i = 0; i < length; i++)
+        {
+            final Object element = elements == null ? Array.get(value, i) : elements.next();
+            if (element != null && element instanceof Enum == false && IMMUTABLE_TYPES.contains(element.getClass()) == false) return UNCACHEABLE;
+            copy.add(element);
+        }
+        return copy;
+    }
+
+
+    /**
+     * A template, and the values of its inputs
+     */
+    private static final class Key
+    {
+        private final Template template;
+        private final List<String> inputs;
+        private final Object[] values;
+        private final int hash;
+
+        private Key(final Template template, final List<String> inputs, final Object[] values)
+        {
+            this.template = template;
+            this.inputs = inputs;
+            this.values = values;
+            this.hash = 31 * (31 * System.identityHashCode(template) + inputs.hashCode()) + Arrays.hashCode(values);
+        }
+
+        /**
+         * @return The key for the current values of the inputs, or null if they can't be cached
+         */
+        static Key of(final Template template, final List<String> inputs, final Binding binding)
+        {
+            final Object[] values = new Object[inputs.size()];
+            for (int i = 0; i < values.length; i++)
+            {
+                final Argument argument = binding == null ? null : binding.forName(inputs.get(i));
+                values[i] = argument == null ? null : snapshot(ArgumentValues.valueOf(argument));
+                if (values[i] == UNCACHEABLE) return null;
+            }
+            return new Key(template, inputs, values);
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o) return true;
+            if (o instanceof Key == false) return false;
+
+            final Key other = (Key)o;
+            return hash == other.hash
+                && template == other.template
+                && inputs.equals(other.inputs)
+                && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private static final class Entry
+    {
+        final String sql;
+
+        /** Set when the entry is used, and cleared when the clock hand passes it */
+        volatile boolean referenced;
+
+        Entry(final String sql)
+        {
+            this.sql = sql;
+        }
+    }
+}
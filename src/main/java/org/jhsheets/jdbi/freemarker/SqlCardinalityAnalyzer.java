@@ -0,0 +1,217 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how many distinct SQL strings each statement renders, to find templates which defeat statement and plan
+ * caches.
+ * <br/><br/>
+ * A template which writes values into the SQL, such as {@code '${name}'}, renders a different statement for every
+ * value.  Each one is prepared and planned separately by the database, and pushes other statements out of the JDBC
+ * statement cache.  Register an analyzer with {@link FreemarkerConfig.Builder#cardinalityAnalyzer(SqlCardinalityAnalyzer)}
+ * and a warning is logged the first time a statement renders more distinct SQL strings than the threshold; the usual
+ * fix is to bind the value with {@code bind()} or a {@code :name} parameter instead.
+ * <br/><br/>
+ * Distinct strings are counted with a HyperLogLog sketch per statement, so memory doesn't grow with the number of
+ * strings rendered: the default precision of 10 uses 1KB per statement, and estimates are typically within 3%.  Each
+ * located statement's SQL is hashed once, unless it's the same string as the last one the statement produced (as
+ * with static statements and the render cache).
+ */
+public class SqlCardinalityAnalyzer
+{
+    private static Logger logger = LoggerFactory.getLogger(SqlCardinalityAnalyzer.class);
+
+    /** The number of registers is 2^precision */
+    private static final int DEFAULT_PRECISION = 10;
+    private static final int MIN_PRECISION = 4;
+    private static final int MAX_PRECISION = 16;
+
+    private final long warningThreshold;
+    private final int precision;
+    private final ConcurrentMap<String, Sketch> sketches = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param warningThreshold The number of distinct SQL strings a statement can render before a warning is logged
+     */
+    public SqlCardinalityAnalyzer(final long warningThreshold)
+    {
+        this(warningThreshold, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param warningThreshold The number of distinct SQL strings a statement can render before a warning is logged
+     * @param precision Each statement's sketch has 2^precision one-byte registers; the typical error of an estimate
+     *                  is 1.04 / sqrt(2^precision).  Between 4 and 16.
+     */
+    public SqlCardinalityAnalyzer(final long warningThreshold, final int precision)
+    {
+        if (warningThreshold <= 0) throw new IllegalArgumentException("The warning threshold must be positive");
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+        {
+            throw new IllegalArgumentException("The precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+        this.warningThreshold = warningThreshold;
+        this.precision = precision;
+    }
+
+    public long getWarningThreshold()
+    {
+        return warningThreshold;
+    }
+
+    /**
+     * @return The estimated number of distinct SQL strings the statement has rendered, or 0 if it hasn't been located
+     */
+    public long getCardinality(final String templateFile, final String statementID)
+    {
+        final Sketch sketch = sketches.get(SqlTemplateLoader.buildTemplateName(templateFile, statementID));
+        return sketch == null ? 0 : sketch.estimate;
+    }
+
+    /**
+     * @return The estimated number of distinct SQL strings rendered by each statement which has been located, keyed
+     *         by template name; see {@link SqlTemplateLoader#buildTemplateName(String, String)}
+     */
+    public Map<String, Long> getCardinalities()
+    {
+        final Map<String, Long> cardinalities = new TreeMap<>();
+        for (final Map.Entry<String, Sketch> entry : sketches.entrySet())
+        {
+            cardinalities.put(entry.getKey(), entry.getValue().estimate);
+        }
+        return cardinalities;
+    }
+
+    /**
+     * Forget every statement's counts
+     */
+    public void reset()
+    {
+        sketches.clear();
+    }
+
+    /**
+     * Count the SQL located for a statement
+     *
+     * @param templateName The statement's template name, which the counts are kept under
+     */
+    void record(final String templateFile, final String statementID, final String templateName, final String sql)
+    {
+        Sketch sketch = sketches.get(templateName);
+        if (sketch == null)
+        {
+            final Sketch created = new Sketch(precision);
+            sketch = sketches.putIfAbsent(templateName, created);
+            if (sketch == null) sketch = created;
+        }
+
+        // Static statements and cached renders return the same string every time, so there's nothing new to count
+        if (sketch.last == sql) return;
+        sketch.last = sql;
+
+        if (sketch.add(hash(sql)) && sketch.estimate > warningThreshold && sketch.warned == false)
+        {
+            sketch.warned = true;
+            logger.warn("Statement {} in XML template file {} has rendered about {} distinct SQL strings, which will defeat " +
+                        "statement and plan caches; bind values as parameters rather than writing them into the SQL",
+                        statementID, templateFile, sketch.estimate);
+        }
+    }
+
+    /**
+     * A 64 bit hash of the text; FNV-1a, with the bits mixed by the MurmurHash3 finalizer so every bit is usable
+     */
+    private static long hash(final String sql)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sql.length(); i++)
+        {
+            h ^= sql.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    /**
+     * A HyperLogLog sketch, with eight one-byte registers packed into each long so they can be raised atomically
+     */
+    private static final class Sketch
+    {
+        private final int precision;
+        private final int registerCount;
+        private final AtomicLongArray registers;
+
+        /** The estimate as of the last time a register was raised */
+        volatile long estimate;
+        volatile boolean warned;
+        volatile String last;
+
+        Sketch(final int precision)
+        {
+            this.precision = precision;
+            this.registerCount = 1 << precision;
+            this.registers = new AtomicLongArray(registerCount / 8);
+        }
+
+        /**
+         * @return true if the estimate may have changed
+         */
+        boolean add(final long hash)
+        {
+            final int register = (int)(hash >>> (64 - precision));
+            // The position of the first set bit in the rest of the hash; the sentinel bit caps it
+            final int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+
+            final int index = register >>> 3;
+            final int shift = (register & 7) << 3;
+            while (true)
+            {
+                final long current = registers.get(index);
+                if (((current >>> shift) & 0xff) >= rank) return false;
+                final long updated = (current & ~(0xffL << shift)) | ((long)rank << shift);
+                if (registers.compareAndSet(index, current, updated)) break;
+            }
+
+            estimate = computeEstimate();
+            return true;
+        }
+
+        private long computeEstimate()
+        {
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < registers.length(); i++)
+            {
+                final long packed = registers.get(i);
+                for (int shift = 0; shift < 64; shift += 8)
+                {
+                    final int value = (int)((packed >>> shift) & 0xff);
+                    sum += 1.0 / (1L << value);
+                    if (value == 0) zeros++;
+                }
+            }
+
+            final double m = registerCount;
+            final double alpha = registerCount == 16 ? 0.673 : registerCount == 32 ? 0.697 : registerCount == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+            final double raw = alpha * m * m / sum;
+
+            // Small cardinalities are estimated more accurately by counting the empty registers
+            if (raw <= 2.5 * m && zeros > 0) return Math.round(m * Math.log(m / zeros));
+            return Math.round(raw);
+        }
+    }
+}
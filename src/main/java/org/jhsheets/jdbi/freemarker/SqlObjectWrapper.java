@@ -0,0 +1,216 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.template.*;
+
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The object wrapper used for statement bindings unless another is set with
+ * {@link FreemarkerConfig.Builder#objectWrapper(freemarker.template.ObjectWrapper)}.
+ * <br/><br/>
+ * One instance is shared by every template of a configuration, so the class introspection Freemarker performs for
+ * beans is done once per class, rather than again for every binding a template reads.
+ * <br/><br/>
+ * The types most often bound to statements are wrapped without going through the general purpose wrapping:
+ * <ul>
+ *     <li>Strings, numbers and booleans are wrapped directly, and small integers share a single model</li>
+ *     <li>Lists and arrays (including arrays of primitives) are adapted rather than copied, so each element is only
+ *         wrapped if, and when, the template reads it</li>
+ *     <li>Maps are adapted rather than copied into a {@link freemarker.template.SimpleHash}</li>
+ * </ul>
+ * Adapted lists, arrays and maps unwrap to the original object, so they can be passed to {@code bindIn()}.  Anything
+ * else is wrapped by the {@link freemarker.template.DefaultObjectWrapper}.
+ */
+public class SqlObjectWrapper
+extends DefaultObjectWrapper
+{
+    /** Integers which are wrapped with a shared model */
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1023;
+    private static final TemplateNumberModel[] SMALL_INTEGERS = new TemplateNumberModel[CACHE_HIGH - CACHE_LOW + 1];
+    static
+    {
+        for (int i = 0; i < SMALL_INTEGERS.length; i++)
+        {
+            SMALL_INTEGERS[i] = new SimpleNumber(i + CACHE_LOW);
+        }
+    }
+
+
+    public SqlObjectWrapper()
+    {
+        this(Configuration.VERSION_2_3_0);
+    }
+
+    /**
+     * @see freemarker.template.DefaultObjectWrapper#DefaultObjectWrapper(freemarker.template.Version)
+     */
+    public SqlObjectWrapper(final Version incompatibleImprovements)
+    {
+        super(incompatibleImprovements);
+    }
+
+    @Override
+    public TemplateModel wrap(final Object obj)
+    throws TemplateModelException
+    {
+        if (obj instanceof String) return new SimpleScalar((String)obj);
+        if (obj instanceof Integer)
+        {
+            final int value = (Integer)obj;
+            return value >= CACHE_LOW && value <= CACHE_HIGH ? SMALL_INTEGERS[value - CACHE_LOW] : new SimpleNumber(value);
+        }
+        if (obj instanceof Number) return new SimpleNumber((Number)obj);
+        if (obj instanceof Boolean) return (Boolean)obj ? TemplateBooleanModel.TRUE : TemplateBooleanModel.FALSE;
+        // Lists without random access would be walked from the start for every element, so those are copied
+        if (obj instanceof List && obj instanceof RandomAccess) return new ListAdapter((List<?>)obj, this);
+        if (obj != null && obj.getClass().isArray()) return new ArrayAdapter(obj, this);
+        if (obj instanceof Map) return new MapAdapter((Map<?, ?>)obj, this);
+        return super.wrap(obj);
+    }
+
+
+    /**
+     * A list, with its elements wrapped as they're read
+     */
+    private static final class ListAdapter
+    extends WrappingTemplateModel
+    implements TemplateSequenceModel, AdapterTemplateModel
+    {
+        private final List<?> list;
+
+        ListAdapter(final List<?> list, final ObjectWrapper wrapper)
+        {
+            super(wrapper);
+            this.list = list;
+        }
+
+        @Override
+        public TemplateModel get(final int index)
+        throws TemplateModelException
+        {
+            return index >= 0 && index < list.size() ? wrap(list.get(index)) : null;
+        }
+
+        @Override
+        public int size()
+        {
+            return list.size();
+        }
+
+        @Override
+        public Object getAdaptedObject(final Class hint)
+        {
+            return list;
+        }
+    }
+
+    /**
+     * An array of objects or primitives, with its elements wrapped as they're read
+     */
+    private static final class ArrayAdapter
+    extends WrappingTemplateModel
+    implements TemplateSequenceModel, AdapterTemplateModel
+    {
+        private final Object array;
+        private final int length;
+
+        ArrayAdapter(final Object array, final ObjectWrapper wrapper)
+        {
+            super(wrapper);
+            this.array = array;
+            this.length = Array.getLength(array);
+        }
+
+        @Override
+        public TemplateModel get(final int index)
+        throws TemplateModelException
+        {
+            if (index < 0 || index >= length) return null;
+
+            // The commonly bound element types are read without reflection
+            if (array instanceof Object[]) return wrap(((Object[])array)[index]);
+            if (array instanceof int[]) return wrap(((int[])array)[index]);
+            if (array instanceof long[]) return new SimpleNumber(((long[])array)[index]);
+            if (array instanceof double[]) return new SimpleNumber(((double[])array)[index]);
+            return wrap(Array.get(array, index));
+        }
+
+        @Override
+        public int size()
+        {
+            return length;
+        }
+
+        @Override
+        public Object getAdaptedObject(final Class hint)
+        {
+            return array;
+        }
+    }
+
+    /**
+     * A map, with its values wrapped as they're read
+     */
+    private static final class MapAdapter
+    extends WrappingTemplateModel
+    implements TemplateHashModelEx, AdapterTemplateModel
+    {
+        private final Map<?, ?> map;
+
+        MapAdapter(final Map<?, ?> map, final ObjectWrapper wrapper)
+        {
+            super(wrapper);
+            this.map = map;
+        }
+
+        @Override
+        public TemplateModel get(final String key)
+        throws TemplateModelException
+        {
+            final Object value;
+            try
+            {
+                value = map.get(key);
+            }
+            catch (ClassCastException e)
+            {
+                return null; // a sorted map whose keys aren't strings
+            }
+            return value == null ? null : wrap(value);
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return map.isEmpty();
+        }
+
+        @Override
+        public int size()
+        {
+            return map.size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys()
+        {
+            return new SimpleCollection(map.keySet(), getObjectWrapper());
+        }
+
+        @Override
+        public TemplateCollectionModel values()
+        {
+            return new SimpleCollection(map.values(), getObjectWrapper());
+        }
+
+        @Override
+        public Object getAdaptedObject(final Class hint)
+        {
+            return map;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * File-level index of the statements contained in our XML template files.
+ * <br/><br/>
+ * Each XML file is parsed once, and every {@link SqlStatementInfo} it contains is kept keyed by its (case-insensitive)
+ * statement ID.  A file is only re-parsed when the last-modified time passed in by the caller differs from the one
+ * recorded when it was last indexed.  SAX parsers are re-used per thread rather than being created for every parse.
+ * <br/><br/>
+ * If the index is told to use pre-compiled bundles, a {@link StatementBundle} stored next to an XML file is read in
+ * place of parsing the XML.
+ */
+public class SqlStatementIndex
+{
+    private static Logger logger = LoggerFactory.getLogger(SqlStatementIndex.class);
+
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    private static final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>()
+    {
+        @Override
+        protected SAXParser initialValue()
+        {
+            try
+            {
+                return parserFactory.newSAXParser();
+            }
+            catch (ParserConfigurationException | SAXException e)
+            {
+                throw new IllegalStateException("Unable to create SAX parser", e);
+            }
+        }
+    };
+
+    private final Map<String, IndexedFile> files = new ConcurrentHashMap<>();
+    private final boolean usePrecompiled;
+    private final TemplateListener listener;
+
+
+    /**
+     * Create an index which always parses the XML template files
+     */
+    public SqlStatementIndex()
+    {
+        this(false);
+    }
+
+    /**
+     * @param usePrecompiled If true, read the {@link StatementBundle} generated for an XML file at build time when
+     *                       there is one.  Bundles aren't regenerated when the XML file is edited, so this should only
+     *                       be used when files aren't checked for modifications.
+     */
+    public SqlStatementIndex(final boolean usePrecompiled)
+    {
+        this(usePrecompiled, TemplateListener.NONE);
+    }
+
+    /**
+     * @param listener Notified each time a file is parsed
+     * @see #SqlStatementIndex(boolean)
+     */
+    public SqlStatementIndex(final boolean usePrecompiled, final TemplateListener listener)
+    {
+        this.usePrecompiled = usePrecompiled;
+        this.listener = listener;
+    }
+
+    /**
+     * @param templateFile The path of the XML template file; used as the index key
+     * @param templateUrl The resolved location of the XML template file
+     * @param statementID The ID of the statement to find.  Matched case-insensitively
+     * @param lastModified The current last-modified time of the file.  If it differs from the time the file was
+     *                     indexed with, the file is parsed again
+     * @return The statement, or null if the file doesn't contain it
+     */
+    public SqlStatementInfo find(final String templateFile, final URL templateUrl, final String statementID, final long lastModified)
+    throws IOException
+    {
+        return getStatements(templateFile, templateUrl, lastModified).get(normalizeID(statementID));
+    }
+
+    /**
+     * @return All statements in the given file, keyed by their lower-cased statement ID
+     */
+    public Map<String, SqlStatementInfo> getStatements(final String templateFile, final URL templateUrl, final long lastModified)
+    throws IOException
+    {
+        IndexedFile indexed = files.get(templateFile);
+        if (indexed == null || indexed.lastModified != lastModified)
+        {
+            final long start = listener == TemplateListener.NONE ? 0L : System.nanoTime();
+            indexed = new IndexedFile(lastModified, load(templateFile, templateUrl));
+            if (listener != TemplateListener.NONE)
+            {
+                listener.onXmlParse(templateFile, indexed.statements.size(), System.nanoTime() - start);
+            }
+            files.put(templateFile, indexed);
+        }
+        return indexed.statements;
+    }
+
+    /**
+     * Remove a file from the index, forcing it to be parsed again the next time it's requested
+     */
+    public void invalidate(final String templateFile)
+    {
+        files.remove(templateFile);
+    }
+
+    /**
+     * Remove all files from the index
+     */
+    public void clear()
+    {
+        files.clear();
+    }
+
+    /**
+     * @return The key used to lookup a statement ID in the index
+     */
+    public static String normalizeID(final String statementID)
+    {
+        return statementID == null ? null : statementID.toLowerCase(Locale.ROOT);
+    }
+
+    private Map<String, SqlStatementInfo> load(final String templateFile, final URL templateUrl)
+    throws IOException
+    {
+        if (templateUrl == null) throw new IOException("Unable to find XML template file: " + templateFile);
+
+        if (usePrecompiled)
+        {
+            final URL bundleUrl = new URL(StatementBundle.getBundlePath(templateUrl.toExternalForm()));
+            try (final InputStream is = bundleUrl.openStream())
+            {
+                logger.debug("Reading statement bundle for XML template file: {}", templateFile);
+                return index(StatementBundle.read(is));
+            }
+            catch (FileNotFoundException e)
+            {
+                logger.debug("No statement bundle for XML template file: {}", templateFile);
+            }
+        }
+
+        return parse(templateFile, templateUrl);
+    }
+
+    private Map<String, SqlStatementInfo> parse(final String templateFile, final URL templateUrl)
+    throws IOException
+    {
+        logger.debug("Parsing XML template file: {}", templateFile);
+        final SAXParser parser = parsers.get();
+        try
+        {
+            // Configure XML template parser
+            final XmlHandler xmlHandler = new XmlHandler();
+            final XMLReader xmlReader = parser.getXMLReader();
+            xmlReader.setErrorHandler(new XmlHandler.ErrHandler(logger));
+            xmlReader.setContentHandler(xmlHandler);
+
+            // Open the XML file and parse it
+            try (final InputStream is = templateUrl.openStream())
+            {
+                xmlReader.parse(new InputSource(is));
+            }
+
+            return index(xmlHandler.getStatements().values());
+        }
+        catch (SAXException e)
+        {
+            throw new IOException("Error parsing XML template file: " + templateFile, e);
+        }
+        finally
+        {
+            parser.reset();
+        }
+    }
+
+    /**
+     * Index all of the statements defined in a file by statement ID
+     */
+    private static Map<String, SqlStatementInfo> index(final Collection<SqlStatementInfo> statementInfos)
+    {
+        final Map<String, SqlStatementInfo> statements = new HashMap<>();
+        for (final SqlStatementInfo stmt : statementInfos)
+        {
+            logger.debug("Found statement: {}", stmt.id);
+            statements.put(normalizeID(stmt.id), stmt);
+        }
+        return Collections.unmodifiableMap(statements);
+    }
+
+    /**
+     * The statements parsed from a single file, along with the time stamp of the file when it was parsed
+     */
+    private static final class IndexedFile
+    {
+        final long lastModified;
+        final Map<String, SqlStatementInfo> statements;
+
+        IndexedFile(final long lastModified, final Map<String, SqlStatementInfo> statements)
+        {
+            this.lastModified = lastModified;
+            this.statements = statements;
+        }
+    }
+}
@@ -5,8 +5,24 @@ package org.jhsheets.jdbi.freemarker;
  */
 public class SqlStatementInfo
 {
-    /** Possible statement types that can be defined in our XML Template */
-    public enum StatementType { select, insert, update };
+    /** Possible statement types that can be defined in our XML Template.  A fragment isn't run on its own; it's
+     *  included or imported by other statements */
+    public enum StatementType
+    {
+        select, insert, update, delete, batch, fragment;
+
+        /**
+         * @return The statement type for an XML element name (ignoring case), or null if it isn't a statement
+         */
+        public static StatementType forElement(final String qName)
+        {
+            for (final StatementType type : values())
+            {
+                if (type.name().equalsIgnoreCase(qName)) return type;
+            }
+            return null;
+        }
+    };
 
     public final String id;
     public final StatementType statementType;
@@ -3,51 +3,153 @@ package org.jhsheets.jdbi.freemarker;
 import freemarker.cache.TemplateLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A custom template loader which can be used to parse our XML files that contain multiple Freemarker templates
  * representing SQL queries.
  * <br/><br/>
- * Resources are loaded using {@code Thread.currentThread().getContextClassLoader().getResource()}
+ * Resources are loaded using {@code Thread.currentThread().getContextClassLoader().getResource()}, unless the loader
+ * is given a class loader of its own.  A loader with its own class loader resolves each XML file's URL once, and only
+ * holds a weak reference to the class loader, so it doesn't stop an undeployed application from being unloaded.
+ * <br/><br/>
+ * Each XML file is parsed once into a {@link SqlStatementIndex}, and is only parsed again when its last-modified time
+ * changes.
  */
 public class SqlTemplateLoader
 implements TemplateLoader
 {
     private static Logger logger = LoggerFactory.getLogger(SqlTemplateLoader.class);
 
+    /** The time stamp reported for every template when modification checks are turned off */
+    private static final long UNMODIFIED = 0L;
+
+    /** Separates the XML template file from the statement ID in a template name */
+    private static final char SEPARATOR = '#';
+
+    /** Set when a statement is loaded, so the caller of {@link freemarker.template.Configuration#getTemplate(String)}
+     *  can tell whether the template came from the cache */
+    private static final ThreadLocal<Boolean> loaded = new ThreadLocal<>();
+
+    private final SqlStatementIndex index;
+    private final boolean checkModified;
+    private final TemplateListener listener;
+
+    /** The class loader resources are loaded through, or null to use the thread's context class loader */
+    private final WeakReference<ClassLoader> classLoader;
+
+    /** The URL of each XML file found through {@link #classLoader} */
+    private final Map<String, URL> urls = new ConcurrentHashMap<>();
+
+
+    /**
+     * Create a loader which checks the XML template files for modifications
+     */
+    public SqlTemplateLoader()
+    {
+        this(true);
+    }
+
+    /**
+     * @param checkModified If false, the XML template files are never checked for modifications; each file is parsed
+     *                      once (or read from its pre-compiled {@link StatementBundle}), and its statements are used
+     *                      until the application is restarted
+     */
+    public SqlTemplateLoader(final boolean checkModified)
+    {
+        this(checkModified, TemplateListener.NONE);
+    }
+
+    /**
+     * @param listener Notified as XML files are parsed and statements are loaded
+     * @see #SqlTemplateLoader(boolean)
+     */
+    public SqlTemplateLoader(final boolean checkModified, final TemplateListener listener)
+    {
+        this(checkModified, listener, null);
+    }
+
+    /**
+     * @param classLoader The class loader to load XML template files through, or null to use the context class loader
+     *                    of the thread loading the template
+     * @see #SqlTemplateLoader(boolean, TemplateListener)
+     */
+    public SqlTemplateLoader(final boolean checkModified, final TemplateListener listener, final ClassLoader classLoader)
+    {
+        this.checkModified = checkModified;
+        this.listener = listener;
+        this.classLoader = classLoader == null ? null : new WeakReference<>(classLoader);
+        this.index = new SqlStatementIndex(checkModified == false, listener);
+    }
+
+    /**
+     * @return true if a statement was loaded by the current thread since the last time this was called
+     */
+    static boolean consumeLoaded()
+    {
+        final boolean wasLoaded = loaded.get() != null;
+        if (wasLoaded) loaded.remove();
+        return wasLoaded;
+    }
 
     /**
-     * @return Generate a name that can be used to uniquely identify a statement within a templatefile
+     * @return Generate a name that can be used to uniquely identify a statement within a templatefile.  The statement
+     *         ID follows the first '#', so it may contain '#' itself
      */
     public static String buildTemplateName(final String templateLocation, final String statementID)
     {
-        return templateLocation + "#" + statementID;
+        return templateLocation + SEPARATOR + statementID;
     }
 
-    private String getTemplatePath(final Object templateSource)
+    String getTemplatePath(final Object templateSource)
     {
         final String name = templateSource.toString();
-        return name != null && name.isEmpty() == false ? name.split("#")[0] : null;
+        final int separator = name.indexOf(SEPARATOR);
+        return separator < 0 ? name : name.substring(0, separator);
+    }
+
+    /**
+     * @return The location of the XML template file, or null if it doesn't exist
+     */
+    protected URL getTemplateURL(final String templatePath)
+    throws IOException
+    {
+        if (classLoader == null) return Thread.currentThread().getContextClassLoader().getResource( templatePath );
+
+        URL url = urls.get(templatePath);
+        if (url == null)
+        {
+            final ClassLoader loader = classLoader.get();
+            if (loader == null) throw new FileNotFoundException("The class loader for XML template file: " + templatePath + " has been released");
+
+            // Files which aren't found aren't remembered, in case they're added later
+            url = loader.getResource(templatePath);
+            if (url != null) urls.put(templatePath, url);
+        }
+        return url;
     }
 
-    private URL getTemplateURL(final String templatePath)
+    /**
+     * Remove an XML template file's statements from the index, so the file is parsed again the next time one of its
+     * statements is loaded
+     */
+    protected void invalidate(final String templatePath)
     {
-        return Thread.currentThread().getContextClassLoader().getResource( templatePath );
+        urls.remove(templatePath);
+        index.invalidate(templatePath);
     }
 
-    private String getStatementID(final Object templateSource)
+    String getStatementID(final Object templateSource)
     {
         final String name = templateSource.toString();
-        return name != null && name.isEmpty() == false ? name.split("#")[1] : null;
+        final int separator = name.indexOf(SEPARATOR);
+        return separator < 0 ? null : name.substring(separator + 1);
     }
 
     @Override
@@ -60,11 +162,13 @@ implements TemplateLoader
     @Override
     public long getLastModified(final Object templateSource)
     {
+        if (checkModified == false) return UNMODIFIED;
+
         // Get the last modified time of the xml file
         final String tp = getTemplatePath(templateSource);
-        final URL url = getTemplateURL( tp );
         try
         {
+            final URL url = getTemplateURL( tp );
             final URLConnection c = url.openConnection();
             return c.getLastModified();
         }
@@ -84,45 +188,21 @@ implements TemplateLoader
         final String templateFile = getTemplatePath(templateSource);
         final URL templateUrl = getTemplateURL( templateFile );
 
-        try
+        // The XML file is only parsed again if it has changed since it was indexed
+        final SqlStatementInfo stmt = index.find(templateFile, templateUrl, statementID, getLastModified(templateSource));
+        if (stmt != null)
         {
-            // Configure XML template parser
-            final XmlHandler xmlHandler = new XmlHandler();
-            final SAXParserFactory spf = SAXParserFactory.newInstance();
-            final SAXParser parser = spf.newSAXParser();
-            final XMLReader xmlReader = parser.getXMLReader();
-            xmlReader.setErrorHandler(new XmlHandler.ErrHandler(logger));
-            xmlReader.setContentHandler(xmlHandler);
-
-            // Open the XML file and parse it
-            try (final InputStream is = templateUrl.openStream())
+            logger.trace("Statement found: {}", stmt.statement);
+            if (listener != TemplateListener.NONE)
             {
-                xmlReader.parse(new InputSource(is));
-
-                // Get all of the statements defined in the file by statement ID
-                final Map<String, SqlStatementInfo> queries = xmlHandler.getStatements();
-
-                // Iterate over each of the statements found....
-                for (final String key : queries.keySet())
-                {
-                    logger.debug("Found statement: {}", key);
-                    // Found a match; return it
-                    if (statementID.equalsIgnoreCase(key))
-                    {
-                        final SqlStatementInfo stmt = queries.get(key);
-                        logger.trace("Statement found: {}", stmt.statement);
-                        return new StringReader(stmt.statement);
-                    }
-                }
+                loaded.set(Boolean.TRUE);
+                listener.onTemplateLoad(templateFile, statementID);
             }
-        }
-        catch (javax.xml.parsers.ParserConfigurationException | org.xml.sax.SAXException e)
-        {
-            throw new IOException("Error parsing statement: " + statementID + " in XML template file: " + templateFile, e);
+            return new StringReader(stmt.statement);
         }
 
-        logger.warn("Unable to find statement: {} in file: {}", statementID, templateFile);
-        return null;
+        // Freemarker can't handle a null reader, so report the missing statement
+        throw new FileNotFoundException("Unable to find statement: " + statementID + " in XML template file: " + templateFile);
     }
 
     @Override
@@ -0,0 +1,77 @@
+package org.jhsheets.jdbi.freemarker;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compact, pre-indexed binary form of the statements in an XML template file.
+ * <br/><br/>
+ * Bundles are generated at build time by the jdbi-freemarker-compiler annotation processor, and are stored next to
+ * the XML template file they were built from, with a {@value #SUFFIX} suffix.  When templates are loaded in
+ * {@link FreemarkerConfig.Mode#PRODUCTION} mode the bundle is read in place of parsing the XML file.
+ */
+public final class StatementBundle
+{
+    /** Appended to the path of an XML template file to get the path of its bundle */
+    public static final String SUFFIX = ".stmts";
+
+    private static final int MAGIC = 0x4a464d42; // JFMB
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private StatementBundle()
+    {
+    }
+
+    /**
+     * @return The path of the bundle for the given XML template file
+     */
+    public static String getBundlePath(final String templateFile)
+    {
+        return templateFile + SUFFIX;
+    }
+
+    public static void write(final Collection<SqlStatementInfo> statements, final OutputStream os)
+    throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(statements.size());
+        for (final SqlStatementInfo stmt : statements)
+        {
+            out.writeUTF(stmt.id);
+            out.writeUTF(stmt.statementType.name());
+            // writeUTF is limited to 64K, which a generated statement can exceed
+            final byte[] statement = stmt.statement.getBytes(UTF8);
+            out.writeInt(statement.length);
+            out.write(statement);
+        }
+        out.flush();
+    }
+
+    public static List<SqlStatementInfo> read(final InputStream is)
+    throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) throw new IOException("Not a statement bundle");
+
+        final int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported statement bundle version: " + version);
+
+        final int count = in.readInt();
+        final List<SqlStatementInfo> statements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            final String id = in.readUTF();
+            final SqlStatementInfo.StatementType type = SqlStatementInfo.StatementType.valueOf(in.readUTF());
+            final byte[] statement = new byte[in.readInt()];
+            in.readFully(statement);
+            statements.add(new SqlStatementInfo(id, type, new String(statement, UTF8)));
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,51 @@
+package org.jhsheets.jdbi.freemarker;
+
+/**
+ * Notified as templates are loaded and rendered, so the cost of each template file and statement can be measured.
+ * <br/><br/>
+ * Register a listener with {@link FreemarkerConfig.Builder#listener(TemplateListener)}.  Listeners are called on the
+ * thread locating the statement, so they must be thread-safe and fast.  Extend {@link TemplateListenerAdapter} to
+ * only handle some of the events.  When no listener is registered, no timings are taken.
+ */
+public interface TemplateListener
+{
+    /** A listener which ignores every event */
+    TemplateListener NONE = new TemplateListenerAdapter();
+
+    /**
+     * An XML template file was parsed (or its pre-compiled {@link StatementBundle} was read)
+     *
+     * @param statementCount The number of statements found in the file
+     */
+    void onXmlParse(String templateFile, int statementCount, long nanos);
+
+    /**
+     * The text of a statement was handed to Freemarker to be compiled
+     */
+    void onTemplateLoad(String templateFile, String statementID);
+
+    /**
+     * A statement wasn't in Freemarker's template cache (or had to be reloaded), and was loaded and compiled
+     *
+     * @param nanos The time taken to load and compile the template
+     */
+    void onCompile(String templateFile, String statementID, long nanos);
+
+    /**
+     * A compiled template was found in the template cache
+     */
+    void onCacheHit(String templateFile, String statementID);
+
+    /**
+     * A compiled template wasn't found in the template cache
+     */
+    void onCacheMiss(String templateFile, String statementID);
+
+    /**
+     * A statement was located
+     *
+     * @param nanos The time taken to render the template, not including the time to find it
+     * @param sqlLength The length of the rendered SQL
+     */
+    void onRender(String templateFile, String statementID, long nanos, int sqlLength);
+}
@@ -0,0 +1,38 @@
+package org.jhsheets.jdbi.freemarker;
+
+/**
+ * A {@link TemplateListener} which ignores every event.  Extend it to only handle the events you're interested in.
+ */
+public class TemplateListenerAdapter
+implements TemplateListener
+{
+    @Override
+    public void onXmlParse(final String templateFile, final int statementCount, final long nanos)
+    {
+    }
+
+    @Override
+    public void onTemplateLoad(final String templateFile, final String statementID)
+    {
+    }
+
+    @Override
+    public void onCompile(final String templateFile, final String statementID, final long nanos)
+    {
+    }
+
+    @Override
+    public void onCacheHit(final String templateFile, final String statementID)
+    {
+    }
+
+    @Override
+    public void onCacheMiss(final String templateFile, final String statementID)
+    {
+    }
+
+    @Override
+    public void onRender(final String templateFile, final String statementID, final long nanos, final int sqlLength)
+    {
+    }
+}
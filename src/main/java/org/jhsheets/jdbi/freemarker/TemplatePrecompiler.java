@@ -0,0 +1,289 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.template.Template;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Eagerly loads and compiles every template referenced by a set of SQL Object interfaces, so XML parsing and template
+ * compilation happen at startup rather than on the first call to each DAO method.
+ * <br/><br/>
+ * Templates are resolved the same way {@link FreemarkerLocatorFactory} resolves them, and are compiled in parallel on
+ * a {@link java.util.concurrent.ForkJoinPool}.  Missing statements and template syntax errors are collected into the
+ * returned {@link Result}, so the application can fail fast:
+ * <pre>
+ * {@code
+ * new TemplatePrecompiler().precompile(MyDao.class, OtherDao.class).assertSuccessful();
+ * }
+ * </pre>
+ */
+public class TemplatePrecompiler
+{
+    private static Logger logger = LoggerFactory.getLogger(TemplatePrecompiler.class);
+
+    private final FreemarkerConfig config;
+
+
+    /**
+     * Create a pre-compiler which uses the {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration}
+     */
+    public TemplatePrecompiler()
+    {
+        this(null);
+    }
+
+    /**
+     * @param config The configuration to compile the templates into.  If null, we'll use the
+     *               {@link FreemarkerTemplateLocator#getDefaultConfig() default configuration} at the time the
+     *               templates are compiled, or the configuration for each SQL Object's class loader if
+     *               {@link FreemarkerTemplateLocator#setDefaultScopes(FreemarkerConfigScopes) scopes} are set
+     */
+    public TemplatePrecompiler(final FreemarkerConfig config)
+    {
+        this.config = config;
+    }
+
+    public Result precompile(final Class<?>... sqlObjectTypes)
+    {
+        return precompile(Arrays.asList(sqlObjectTypes));
+    }
+
+    /**
+     * Compile the templates using a new {@link java.util.concurrent.ForkJoinPool}, which is shut down afterwards
+     */
+    public Result precompile(final Collection<? extends Class<?>> sqlObjectTypes)
+    {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            return precompile(sqlObjectTypes, pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @param sqlObjectTypes The SQL Object interfaces whose templates should be compiled
+     * @param pool The pool to compile the templates on
+     * @return The templates which were compiled, and any which couldn't be
+     */
+    public Result precompile(final Collection<? extends Class<?>> sqlObjectTypes, final ForkJoinPool pool)
+    {
+        // Several methods may share the same statement; each template only needs to be compiled once per configuration
+        final Map<FreemarkerConfig, Map<String, String>> configs = new IdentityHashMap<>();
+        for (final Class<?> sqlObjectType : sqlObjectTypes)
+        {
+            final FreemarkerConfig cfg = config == null ? FreemarkerTemplateLocator.getDefaultConfig(sqlObjectType) : config;
+            Map<String, String> templates = configs.get(cfg);
+            if (templates == null)
+            {
+                templates = new LinkedHashMap<>();
+                configs.put(cfg, templates);
+            }
+
+            for (final Map.Entry<String, Method> entry : resolveTemplates(sqlObjectType).entrySet())
+            {
+                if (templates.containsKey(entry.getKey()) == false)
+                {
+                    templates.put(entry.getKey(), sqlObjectType.getName() + "." + entry.getValue().getName());
+                }
+            }
+        }
+
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        final List<CompileTask> tasks = new ArrayList<>();
+        for (final Map.Entry<FreemarkerConfig, Map<String, String>> entry : configs.entrySet())
+        {
+            for (final Map.Entry<String, String> template : entry.getValue().entrySet())
+            {
+                tasks.add(new CompileTask(entry.getKey(), template.getKey(), template.getValue(), classLoader));
+            }
+        }
+
+        final List<String> compiled = new ArrayList<>();
+        final Map<String, Exception> failures = new LinkedHashMap<>();
+        final Iterator<CompileTask> compiledTasks = tasks.iterator();
+        for (final Future<Exception> future : pool.invokeAll(tasks))
+        {
+            final CompileTask task = compiledTasks.next();
+            Exception error;
+            try
+            {
+                error = future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                error = e;
+            }
+            catch (ExecutionException e)
+            {
+                error = e;
+            }
+
+            if (error == null)
+            {
+                compiled.add(task.templateName);
+            }
+            else
+            {
+                logger.error("Unable to compile template: " + task.templateName + " used by: " + task.usedBy, error);
+                failures.put(task.templateName + " (" + task.usedBy + ")", error);
+            }
+        }
+
+        logger.info("Compiled {} of {} templates", compiled.size(), tasks.size());
+        return new Result(compiled, failures);
+    }
+
+    /**
+     * @return The names of all templates used by the SQL Object, and the first method which uses each of them
+     */
+    static Map<String, Method> resolveTemplates(final Class<?> sqlObjectType)
+    {
+        final Map<String, Method> templates = new LinkedHashMap<>();
+        final FreemarkerTemplate typeAnnotation = sqlObjectType.getAnnotation(FreemarkerTemplate.class);
+
+        for (final Method method : sqlObjectType.getMethods())
+        {
+            final String sqlName = FreemarkerLocatorFactory.getSqlName(method);
+            if (sqlName == null) continue; // not a SQL method
+
+            // Method annotations take precedence over the class annotation, as they're applied to the statement last
+            final FreemarkerTemplate methodAnnotation = method.getAnnotation(FreemarkerTemplate.class);
+            final String templateName;
+            if (methodAnnotation != null)
+            {
+                final String statementID = FreemarkerLocatorFactory.getStatementID(methodAnnotation);
+                templateName = SqlTemplateLoader.buildTemplateName(
+                        FreemarkerLocatorFactory.getTemplateLocation(methodAnnotation, sqlObjectType),
+                        statementID == null ? sqlName : statementID);
+            }
+            else if (typeAnnotation != null)
+            {
+                templateName = SqlTemplateLoader.buildTemplateName(
+                        FreemarkerLocatorFactory.getTemplateLocation(typeAnnotation, sqlObjectType),
+                        sqlName);
+            }
+            else
+            {
+                continue; // not using a template
+            }
+
+            if (templates.containsKey(templateName) == false) templates.put(templateName, method);
+        }
+        return templates;
+    }
+
+    /**
+     * Compiles a single template, returning the error if it couldn't be compiled
+     */
+    private static final class CompileTask
+    implements Callable<Exception>
+    {
+        private final FreemarkerConfig cfg;
+        final String templateName;
+
+        /** The first SQL Object method which uses the template */
+        final String usedBy;
+        private final ClassLoader classLoader;
+
+        CompileTask(final FreemarkerConfig cfg, final String templateName, final String usedBy, final ClassLoader classLoader)
+        {
+            this.cfg = cfg;
+            this.templateName = templateName;
+            this.usedBy = usedBy;
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public Exception call()
+        {
+            // Templates are loaded through the context class loader, so use the caller's rather than the pool thread's
+            final Thread thread = Thread.currentThread();
+            final ClassLoader original = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            try
+            {
+                final Template template = cfg.getTemplate(templateName);
+                CompiledStatement.of(template, cfg);
+                return null;
+            }
+            catch (Exception e)
+            {
+                return e;
+            }
+            finally
+            {
+                thread.setContextClassLoader(original);
+            }
+        }
+    }
+
+
+    /**
+     * The outcome of pre-compiling a set of templates
+     */
+    public static final class Result
+    {
+        private final List<String> compiled;
+        private final Map<String, Exception> failures;
+
+        Result(final List<String> compiled, final Map<String, Exception> failures)
+        {
+            this.compiled = Collections.unmodifiableList(compiled);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return The names of the templates that were compiled
+         */
+        public List<String> getCompiled()
+        {
+            return compiled;
+        }
+
+        /**
+         * @return The errors for each template that couldn't be compiled, keyed by template name and the method using it
+         */
+        public Map<String, Exception> getFailures()
+        {
+            return failures;
+        }
+
+        public boolean isSuccessful()
+        {
+            return failures.isEmpty();
+        }
+
+        /**
+         * @throws IllegalStateException If any of the templates couldn't be compiled
+         */
+        public void assertSuccessful()
+        {
+            if (isSuccessful()) return;
+
+            final StringBuilder message = new StringBuilder("Unable to compile ").append(failures.size()).append(" template(s):");
+            for (final Map.Entry<String, Exception> failure : failures.entrySet())
+            {
+                message.append("\n  ").append(failure.getKey()).append(": ").append(failure.getValue().getMessage());
+            }
+            final IllegalStateException e = new IllegalStateException(message.toString());
+            for (final Exception failure : failures.values())
+            {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+    }
+}
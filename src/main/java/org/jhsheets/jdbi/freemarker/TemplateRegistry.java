@@ -0,0 +1,214 @@
+package org.jhsheets.jdbi.freemarker;
+
+import freemarker.cache.StatefulTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Compiled templates, keyed by template name, in front of {@link freemarker.template.Configuration#getTemplate(String)}.
+ * <br/><br/>
+ * Freemarker's template cache synchronizes every lookup, which becomes a contention point when many threads locate
+ * statements at once, and pins the carrier of a virtual thread.  Once a template is loaded here, finding it again is a
+ * lock-free read from a {@link BoundedCacheStorage}.  When a template isn't loaded, only one thread loads it through
+ * the configuration; other threads wanting the same template wait for it without holding a monitor.
+ * <br/><br/>
+ * The registry holds a fixed number of templates, and as it sees every lookup, it decides which are kept: when it
+ * evicts a template, the template is removed from Freemarker's cache too.  A template which isn't used often enough to
+ * be admitted is still loaded, but isn't kept here.
+ * <br/><br/>
+ * A loaded template is checked for changes through the configuration once the check interval has passed.  While one
+ * thread checks it, other threads carry on using the template they already have.  Templates included or imported by
+ * a statement are still found through Freemarker's cache.
+ */
+final class TemplateRegistry
+implements BoundedCacheStorage.EvictionListener
+{
+    private static Logger logger = LoggerFactory.getLogger(TemplateRegistry.class);
+
+    /** The check interval used when templates are never checked for changes */
+    static final long NEVER = Long.MAX_VALUE;
+
+    private final Configuration cfg;
+    private final long checkIntervalNanos;
+    private final BoundedCacheStorage templates;
+
+
+    /**
+     * @param cfg The configuration which loads and compiles the templates
+     * @param checkIntervalNanos How long a template is used before it's checked for changes, or {@link #NEVER}
+     * @param maximumSize The most templates to keep
+     */
+    TemplateRegistry(final Configuration cfg, final long checkIntervalNanos, final int maximumSize)
+    {
+        this.cfg = cfg;
+        this.checkIntervalNanos = checkIntervalNanos;
+        this.templates = new BoundedCacheStorage(maximumSize, this);
+    }
+
+    /**
+     * @return The templates held, with their hit, miss and eviction counts
+     */
+    BoundedCacheStorage getStorage()
+    {
+        return templates;
+    }
+
+    Template getTemplate(final String name)
+    throws IOException
+    {
+        while (true)
+        {
+            Entry entry = (Entry)templates.get(name);
+            if (entry == null)
+            {
+                final Entry loading = new Entry(name, null);
+                entry = (Entry)templates.putIfAbsent(name, loading);
+                if (entry == null) return loading.load(); // whether or not it was admitted
+                // otherwise another thread got there first
+            }
+
+            if (entry.isLoaded() == false)
+            {
+                // Carry on with the previous version while another thread checks for a new one
+                if (entry.previous != null) return entry.previous;
+                return entry.await();
+            }
+
+            if (checkIntervalNanos == NEVER || System.nanoTime() - entry.loadedAt < checkIntervalNanos)
+            {
+                return entry.await();
+            }
+
+            // Due for a check; only the thread which replaces the entry performs it
+            final Entry checking = new Entry(name, entry.await());
+            if (templates.replace(name, entry, checking))
+            {
+                return checking.load();
+            }
+        }
+    }
+
+    /**
+     * Forget the templates of an XML template file, so they're found through the configuration again
+     */
+    void invalidate(final String templateFile)
+    {
+        final String prefix = SqlTemplateLoader.buildTemplateName(templateFile, "");
+        for (final Object name : templates.keys())
+        {
+            if (((String)name).startsWith(prefix)) templates.remove(name);
+        }
+
+        // A multi loader sticks with the loader which last found each template, so a file created in an earlier
+        // loader's directory would never be looked for there
+        if (cfg.getTemplateLoader() instanceof StatefulTemplateLoader) ((StatefulTemplateLoader)cfg.getTemplateLoader()).resetState();
+    }
+
+    void clear()
+    {
+        templates.clear();
+    }
+
+    /**
+     * Freemarker's cache only keeps the templates we keep
+     */
+    @Override
+    public void evicted(final Object name, final Object entry)
+    {
+        try
+        {
+            cfg.removeTemplateFromCache((String)name);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to remove evicted template from the Freemarker cache: " + name, e);
+        }
+    }
+
+
+    /**
+     * A template which has been, or is being, loaded
+     */
+    private final class Entry
+    implements Callable<Template>
+    {
+        private final String name;
+        private final FutureTask<Template> task = new FutureTask<>(this);
+
+        /** The template this entry replaces, while it's being checked for changes */
+        final Template previous;
+        volatile long loadedAt;
+
+        Entry(final String name, final Template previous)
+        {
+            this.name = name;
+            this.previous = previous;
+        }
+
+        @Override
+        public Template call()
+        throws IOException
+        {
+            final Template template = cfg.getTemplate(name);
+            loadedAt = System.nanoTime();
+            return template;
+        }
+
+        boolean isLoaded()
+        {
+            return task.isDone();
+        }
+
+        /**
+         * Load the template on this thread
+         */
+        Template load()
+        throws IOException
+        {
+            task.run();
+            return await();
+        }
+
+        Template await()
+        throws IOException
+        {
+            boolean interrupted = false;
+            try
+            {
+                while (true)
+                {
+                    try
+                    {
+                        return task.get();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Loading can't be abandoned part way, as other threads may be waiting for it
+                        interrupted = true;
+                    }
+                    catch (ExecutionException e)
+                    {
+                        // Let the next lookup try again
+                        templates.remove(name, this);
+                        if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                        if (e.getCause() instanceof Error) throw (Error)e.getCause();
+                        throw new IOException("Unable to load template: " + name, e.getCause());
+                    }
+                }
+            }
+            finally
+            {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
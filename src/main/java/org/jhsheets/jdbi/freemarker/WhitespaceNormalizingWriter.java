@@ -0,0 +1,223 @@
+package org.jhsheets.jdbi.freemarker;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A {@link java.io.Writer} which collapses the insignificant whitespace in SQL as it's written, so templates can be
+ * indented for readability without the indentation reaching the database.
+ * <br/><br/>
+ * Each run of whitespace between tokens becomes a single space, and whitespace at the start and end of the statement
+ * is dropped.  String literals, quoted identifiers and comments are written unchanged:
+ * <ul>
+ *     <li>Text quoted with {@code '}, {@code "} or {@code `}.  A doubled quote, as in {@code 'it''s'}, is kept whole
+ *         as it closes the literal and opens it again.</li>
+ *     <li>{@code --} comments, up to and including the newline which ends them</li>
+ *     <li>{@code /* ... *}{@code /} comments, including optimizer hints</li>
+ * </ul>
+ * Databases which go beyond standard SQL need the matching {@link Option options}, or a literal may be mistaken for
+ * SQL and have its contents changed.  For MySQL, use {@link Option#BACKSLASH_ESCAPES} and {@link Option#HASH_COMMENTS};
+ * for PostgreSQL {@code E'...'} strings, {@link Option#BACKSLASH_ESCAPES}.  They're off by default, as a backslash
+ * ending a standard literal (such as {@code 'C:\'}) would leave it open, and {@code #} starts operators and
+ * temporary table names in other databases.
+ * <br/><br/>
+ * The state is kept between writes, so text can be written in any number of pieces, as a template is rendered.
+ */
+public final class WhitespaceNormalizingWriter
+extends Writer
+{
+    /** Syntax beyond standard SQL which is recognized */
+    public enum Option
+    {
+        /** A backslash in quoted text escapes the next character, as in MySQL's {@code 'it\'s'} */
+        BACKSLASH_ESCAPES,
+
+        /** {@code #} starts a comment running to the end of the line, as in MySQL */
+        HASH_COMMENTS
+    }
+
+    private enum State { CODE, QUOTED, LINE_COMMENT, BLOCK_COMMENT }
+
+    private final Writer out;
+    private final boolean backslashEscapes;
+    private final boolean hashComments;
+
+    private State state = State.CODE;
+    private char quote;
+    private boolean escaped;
+    private char previous;
+
+    /** Whether anything has been written, so whitespace before the first token can be dropped */
+    private boolean started;
+
+    /** Whitespace has been skipped, and a space is written before the next token */
+    private boolean pendingSpace;
+
+    /** The last thing written was the newline ending a comment, which already separates it from the next token */
+    private boolean separated;
+
+
+    /**
+     * Normalize standard SQL
+     *
+     * @param out Where the normalized SQL is written
+     */
+    public WhitespaceNormalizingWriter(final Writer out)
+    {
+        this(out, EnumSet.noneOf(Option.class));
+    }
+
+    /**
+     * @param out Where the normalized SQL is written
+     * @param options The syntax beyond standard SQL to recognize
+     */
+    public WhitespaceNormalizingWriter(final Writer out, final Set<Option> options)
+    {
+        this.out = out;
+        this.backslashEscapes = options.contains(Option.BACKSLASH_ESCAPES);
+        this.hashComments = options.contains(Option.HASH_COMMENTS);
+    }
+
+    /**
+     * @return The standard SQL with its insignificant whitespace collapsed
+     */
+    public static String normalize(final String sql)
+    {
+        return normalize(sql, EnumSet.noneOf(Option.class));
+    }
+
+    /**
+     * @param options The syntax beyond standard SQL to recognize
+     * @return The SQL with its insignificant whitespace collapsed
+     */
+    public static String normalize(final String sql, final Set<Option> options)
+    {
+        final StringWriter normalized = new StringWriter(sql.length());
+        try
+        {
+            new WhitespaceNormalizingWriter(normalized, options).write(sql, 0, sql.length());
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e); // a StringWriter never throws
+        }
+        return normalized.toString();
+    }
+
+    @Override
+    public void write(final int c)
+    throws IOException
+    {
+        accept((char)c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len)
+    throws IOException
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            accept(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len)
+    throws IOException
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            accept(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush()
+    throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Any whitespace written since the last token is dropped
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        out.close();
+    }
+
+    private void accept(final char c)
+    throws IOException
+    {
+        switch (state)
+        {
+            case QUOTED:
+                out.write(c);
+                if (escaped) escaped = false;
+                else if (c == '\\' && backslashEscapes) escaped = true;
+                else if (c == quote) endQuoted();
+                return;
+
+            case LINE_COMMENT:
+                out.write(c);
+                if (c == '\n')
+                {
+                    // The newline ends the comment, and separates it from the next token
+                    endQuoted();
+                    separated = true;
+                }
+                return;
+
+            case BLOCK_COMMENT:
+                out.write(c);
+                if (c == '/' && previous == '*') endQuoted();
+                else previous = c;
+                return;
+
+            default:
+                if (Character.isWhitespace(c))
+                {
+                    pendingSpace = started && separated == false;
+                    previous = 0;
+                    return;
+                }
+
+                if (pendingSpace) out.write(' ');
+                pendingSpace = false;
+                separated = false;
+                started = true;
+                out.write(c);
+
+                if (c == '\'' || c == '"' || c == '`')
+                {
+                    state = State.QUOTED;
+                    quote = c;
+                }
+                else if ((c == '#' && hashComments) || (c == '-' && previous == '-'))
+                {
+                    state = State.LINE_COMMENT;
+                }
+                else if (c == '*' && previous == '/')
+                {
+                    state = State.BLOCK_COMMENT;
+                    previous = 0; // so "/*/" doesn't end the comment
+                    return;
+                }
+                previous = c;
+        }
+    }
+
+    /**
+     * Back to SQL, after a literal or comment
+     */
+    private void endQuoted()
+    {
+        state = State.CODE;
+        previous = 0;
+    }
+}
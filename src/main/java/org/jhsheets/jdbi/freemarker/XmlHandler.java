@@ -19,7 +19,7 @@ extends DefaultHandler
     private final Map<String, SqlStatementInfo> statements = new HashMap<>();
 
     private boolean isQuery = false;
-    private String statementType = "";
+    private SqlStatementInfo.StatementType statementType = null;
     private String statementID = "";
     private StringBuilder statementText = new StringBuilder();
 
@@ -36,10 +36,11 @@ extends DefaultHandler
     public void startElement(final String uri, final String localName, final String qName, final Attributes attributes)
     throws SAXException
     {
-        if (qName.equalsIgnoreCase("select") || qName.equalsIgnoreCase("insert") || qName.equalsIgnoreCase("update"))
+        final SqlStatementInfo.StatementType type = SqlStatementInfo.StatementType.forElement(qName);
+        if (type != null)
         {
             isQuery = true;
-            statementType = qName;
+            statementType = type;
             statementID = attributes.getValue("id");
             statementText = new StringBuilder(); // reset to blank
         }
@@ -51,12 +52,11 @@ extends DefaultHandler
     {
         if (isQuery && !statementID.isEmpty() && statementText.length() > 0)
         {
-            final SqlStatementInfo.StatementType type = SqlStatementInfo.StatementType.valueOf(statementType);
-            final SqlStatementInfo stmt = new SqlStatementInfo(statementID, type, statementText.toString());
+            final SqlStatementInfo stmt = new SqlStatementInfo(statementID, statementType, statementText.toString());
             statements.put(statementID, stmt);
 
             isQuery = false;
-            statementType = "";
+            statementType = null;
             statementID = "";
             statementText = new StringBuilder();
         }
@@ -0,0 +1,109 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.exceptions.UnableToCreateStatementException;
+import org.skife.jdbi.v2.tweak.BaseStatementCustomizer;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BindParametersTest
+{
+    private static final String TEMPLATE_FILE = "org/jhsheets/jdbi/freemarker/BindParametersTest.xml";
+
+    private Handle handle;
+
+    /** The SQL each statement was run with */
+    private String executedSql;
+
+
+    @Before
+    public void open()
+    {
+        handle = new DBI("jdbc:h2:mem:").open();
+        handle.execute("CREATE TABLE rec (id INT PRIMARY KEY, name VARCHAR(20))");
+        handle.execute("INSERT INTO rec VALUES (1, 'a'), (2, 'b'), (3, 'b'), (4, 'c'), (5, 'c')");
+        handle.setStatementLocator(new FreemarkerTemplateLocator(TEMPLATE_FILE, null, FreemarkerConfig.builder().build()));
+    }
+
+    @After
+    public void close()
+    {
+        handle.close();
+    }
+
+    @Test
+    public void bindInPadsToAPowerOfTwo()
+    {
+        assertEquals(Arrays.asList(2), ids(query("byIds").bind("idList", Arrays.asList(2))));
+        assertEquals("SELECT id FROM rec WHERE id IN (:__fm0) ORDER BY id", executedSql);
+
+        assertEquals(Arrays.asList(1, 3, 5), ids(query("byIds").bind("idList", Arrays.asList(5, 1, 3))));
+        assertEquals("SELECT id FROM rec WHERE id IN (:__fm0, :__fm1, :__fm2, :__fm3) ORDER BY id", executedSql);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), ids(query("byIds").bind("idList", new int[] { 1, 2, 3, 4, 5 })));
+        assertEquals(8, executedSql.split(",").length);
+    }
+
+    @Test
+    public void bindNumbersParametersInEachRender()
+    {
+        assertEquals(Arrays.asList(2, 3), ids(query("byName").bind("name", "b")));
+        assertEquals("SELECT id FROM rec WHERE name = :__fm0", executedSql);
+
+        // A name which would inject SQL if it were written into the statement
+        assertEquals(Collections.<Integer>emptyList(), ids(query("byName").bind("name", "b' OR '1' = '1")));
+
+        assertEquals(Arrays.asList(5), ids(query("byName").bind("name", "c").bind("minId", 5)));
+        assertEquals("SELECT id FROM rec WHERE name = :__fm0 AND id >= :__fm1", executedSql);
+    }
+
+    @Test
+    public void bindInOfAnEmptyListFails()
+    {
+        try
+        {
+            ids(query("byIds").bind("idList", Collections.emptyList()));
+            fail("An empty list was bound");
+        }
+        catch (UnableToCreateStatementException e)
+        {
+            Throwable cause = e;
+            while (cause.getCause() != null) cause = cause.getCause();
+            assertTrue(cause.getMessage(), cause.getMessage().contains("bindIn() requires at least one value"));
+        }
+    }
+
+    private Query<Map<String, Object>> query(final String name)
+    {
+        final Query<Map<String, Object>> query = handle.createQuery(name);
+        query.addStatementCustomizer(new BaseStatementCustomizer()
+        {
+            @Override
+            public void beforeExecution(final PreparedStatement stmt, final StatementContext ctx)
+            {
+                executedSql = ctx.getLocatedSql().trim();
+            }
+        });
+        return query;
+    }
+
+    private static List<Integer> ids(final Query<Map<String, Object>> query)
+    {
+        return query.map(IntegerMapper.FIRST).list();
+    }
+}
@@ -0,0 +1,156 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedCacheStorageTest
+{
+    @Test
+    public void sizeIsBoundedUnderConcurrentPuts()
+    throws InterruptedException
+    {
+        final BoundedCacheStorage storage = new BoundedCacheStorage(16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+        {
+            final int thread = t;
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        // Shared keys, so threads race to add and evict the same templates
+                        final String key = "key" + (i * 7 + thread) % 64;
+                        if (storage.get(key) == null) storage.put(key, key);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads)
+        {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertTrue(storage.toString(), storage.getSize() <= 16);
+        assertEquals(storage.keys().size(), storage.getSize());
+        assertTrue(storage.toString(), storage.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void newKeysMustBeUsedMoreThanTheVictim()
+    {
+        final BoundedCacheStorage storage = new BoundedCacheStorage(2);
+        storage.put("a", "a");
+        storage.put("b", "b");
+
+        // Never looked up, so it's used no more than either cached key
+        storage.put("c", "c");
+        assertEquals(1, storage.getRejectionCount());
+        assertEquals(0, storage.getEvictionCount());
+        assertEquals(2, storage.getSize());
+
+        for (int i = 0; i < 3; i++)
+        {
+            assertNull(storage.get("c"));
+        }
+        storage.put("c", "c");
+        assertEquals(1, storage.getRejectionCount());
+        assertEquals(1, storage.getEvictionCount());
+        assertEquals(2, storage.getSize());
+        assertEquals("c", storage.get("c"));
+    }
+
+    @Test
+    public void removeAndClearFreeTheirSpace()
+    {
+        final BoundedCacheStorage storage = new BoundedCacheStorage(4);
+        storage.put("a", "a");
+        storage.put("b", "b");
+        storage.put("c", "c");
+
+        storage.remove("b");
+        storage.remove("b");
+        assertEquals(2, storage.getSize());
+
+        storage.remove("a", "other");
+        assertEquals(2, storage.getSize());
+        storage.remove("a", "a");
+        assertEquals(1, storage.getSize());
+
+        storage.clear();
+        assertEquals(0, storage.getSize());
+        assertEquals(0, storage.keys().size());
+
+        // Every slot is free again, so none of these have to be admitted over another
+        for (final String key : new String[] { "d", "e", "f", "g" })
+        {
+            storage.put(key, key);
+        }
+        assertEquals(4, storage.getSize());
+        assertEquals(0, storage.getRejectionCount());
+        assertEquals(0, storage.getEvictionCount());
+    }
+
+    @Test
+    public void frequenciesAreHalvedAfterTenLookupsPerSlot()
+    {
+        final BoundedCacheStorage used = usedStorage();
+        used.put("c", "c");
+        assertEquals(1, used.getEvictionCount());
+
+        // The 20th lookup halves every count, so c (3 -> 1) is no longer used more than a or b (2 -> 1)
+        final BoundedCacheStorage aged = usedStorage();
+        for (int i = 0; i < 13; i++)
+        {
+            assertNull(aged.get("other" + i));
+        }
+        aged.put("c", "c");
+        assertEquals(0, aged.getEvictionCount());
+        assertEquals(1, aged.getRejectionCount());
+        assertNull(aged.get("c"));
+    }
+
+    /**
+     * @return A full storage of two keys looked up twice, after three lookups of a key it doesn't hold; seven of the
+     *         twenty lookups between halvings
+     */
+    private static BoundedCacheStorage usedStorage()
+    {
+        final BoundedCacheStorage storage = new BoundedCacheStorage(2);
+        storage.put("a", "a");
+        storage.put("b", "b");
+        for (int i = 0; i < 2; i++)
+        {
+            storage.get("a");
+            storage.get("b");
+        }
+        for (int i = 0; i < 3; i++)
+        {
+            storage.get("c");
+        }
+        return storage;
+    }
+}
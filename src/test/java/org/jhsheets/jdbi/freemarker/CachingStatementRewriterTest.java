@@ -0,0 +1,173 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.ColonPrefixNamedParamStatementRewriter;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.skife.jdbi.v2.tweak.StatementLocator;
+import org.skife.jdbi.v2.tweak.StatementRewriter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingStatementRewriterTest
+{
+    private static final String TEMPLATE_FILE = "org/jhsheets/jdbi/freemarker/CachingStatementRewriterTest.xml";
+
+    /** The parameters set on each statement prepared */
+    private final List<String> bound = new ArrayList<>();
+    private Handle handle;
+
+
+    @Before
+    public void open()
+    {
+        handle = new DBI(new ConnectionFactory()
+        {
+            @Override
+            public Connection openConnection()
+            {
+                return recording(Connection.class);
+            }
+        }).open();
+    }
+
+    @After
+    public void close()
+    {
+        handle.close();
+    }
+
+    @Test
+    public void namedParameters()
+    {
+        assertBindsLikeJdbi("SELECT :a, :b, :a", "a", 1, "b", 2);
+    }
+
+    @Test
+    public void positionalParameters()
+    {
+        assertBindsLikeJdbi("SELECT ?, ?", 0, "x", 1, "y");
+    }
+
+    @Test
+    public void namedParameterFallsBackToPosition()
+    {
+        assertBindsLikeJdbi("SELECT :a, :b", "a", 1, 1, "y");
+    }
+
+    @Test
+    public void questionMarksAmongNamedParametersDontTakeAPosition()
+    {
+        assertBindsLikeJdbi("SELECT ?, :a", "a", 1);
+        assertBindsLikeJdbi("SELECT :a, ?, :b", "a", 1, 1, "y");
+        assertBindsLikeJdbi("SELECT ?, :a, ?, :b", 0, "x", 1, "y");
+    }
+
+    @Test
+    public void staticStatementsDontNeedToBeAdmitted()
+    {
+        final FreemarkerConfig config = FreemarkerConfig.builder().statementRewriteCache(1).build();
+        final FreemarkerTemplateLocator locator = new FreemarkerTemplateLocator(TEMPLATE_FILE, null, config);
+        final CachingStatementRewriter rewriter = config.getStatementRewriter();
+
+        // Fill the cache with a string used more often than the static statement will be
+        for (int i = 0; i < 3; i++)
+        {
+            bind(rewriter, null, "SELECT :a", "a", 1);
+        }
+        final long misses = rewriter.getCache().getMissCount();
+
+        final List<String> expected = bind(new ColonPrefixNamedParamStatementRewriter(), locator, "byName", "name", "x");
+        assertEquals(expected, bind(rewriter, locator, "byName", "name", "x"));
+        assertEquals(expected, bind(rewriter, locator, "byName", "name", "x"));
+
+        assertEquals(misses, rewriter.getCache().getMissCount());
+        assertEquals(0, rewriter.getCache().getRejectionCount());
+        assertEquals(Collections.<Object>singleton("SELECT :a"), rewriter.getCache().keys());
+    }
+
+    /**
+     * Run the statement with JDBI's rewriter, and twice with the caching one (rewriting it, then from the cache), and
+     * check each binds the same values to the same places
+     *
+     * @param arguments Pairs of a name or position, and the value to bind to it
+     */
+    private void assertBindsLikeJdbi(final String sql, final Object... arguments)
+    {
+        final List<String> expected = bind(new ColonPrefixNamedParamStatementRewriter(), null, sql, arguments);
+
+        final CachingStatementRewriter rewriter = new CachingStatementRewriter(16);
+        assertEquals(expected, bind(rewriter, null, sql, arguments));
+        assertEquals(expected, bind(rewriter, null, sql, arguments));
+        assertEquals(1, rewriter.getCache().getHitCount());
+    }
+
+    /**
+     * @param locator Locates the statement, or null to run the SQL as it is
+     */
+    private List<String> bind(final StatementRewriter rewriter, final StatementLocator locator, final String sql, final Object... arguments)
+    {
+        final Query<Map<String, Object>> query = handle.createQuery(sql);
+        if (locator != null) query.setStatementLocator(locator);
+        query.setStatementRewriter(rewriter);
+        for (int i = 0; i < arguments.length; i += 2)
+        {
+            if (arguments[i] instanceof String) query.bind((String)arguments[i], arguments[i + 1]);
+            else query.bind((Integer)arguments[i], arguments[i + 1]);
+        }
+
+        bound.clear();
+        try
+        {
+            query.list();
+        }
+        catch (UnableToExecuteStatementException e)
+        {
+            // Thrown by the statement once it's been bound, or by the rewritten statement if a parameter is missing
+            bound.add(e.getCause() instanceof SQLException ? "executed" : e.getMessage());
+        }
+        return new ArrayList<>(bound);
+    }
+
+    /**
+     * @return A connection or statement which records the parameters set on it, and fails when it's executed
+     */
+    private <T> T recording(final Class<T> type)
+    {
+        return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable
+            {
+                final String name = method.getName();
+                if (name.startsWith("prepare")) return recording(PreparedStatement.class);
+                if (name.startsWith("set") && type == PreparedStatement.class) bound.add(name + Arrays.toString(args));
+                if (name.startsWith("execute")) throw new SQLException("Not a real database");
+
+                final Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) return false;
+                if (returnType == int.class) return 0;
+                if (returnType == long.class) return 0L;
+                return null;
+            }
+        }));
+    }
+}
@@ -0,0 +1,129 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.IntegerMapper;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FreemarkerBatchTest
+{
+    private static final String TEMPLATE_FILE = "org/jhsheets/jdbi/freemarker/FreemarkerBatchTest.xml";
+
+    private Handle handle;
+
+
+    @Before
+    public void open()
+    {
+        handle = new DBI("jdbc:h2:mem:").open();
+        handle.execute("CREATE TABLE rec (id INT PRIMARY KEY, name VARCHAR(20) DEFAULT 'none')");
+    }
+
+    @After
+    public void close()
+    {
+        handle.close();
+    }
+
+    @Test
+    public void rowsAreRunInChunksAsTheyreRead()
+    {
+        final int rowCount = 11;
+        final Iterable<Map<String, Object>> rows = new Iterable<Map<String, Object>>()
+        {
+            @Override
+            public Iterator<Map<String, Object>> iterator()
+            {
+                return new Iterator<Map<String, Object>>()
+                {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return next < rowCount;
+                    }
+
+                    @Override
+                    public Map<String, Object> next()
+                    {
+                        // Every full chunk of the rows already read has been sent
+                        final int named = (next + 1) / 2;
+                        final int unnamed = next / 2;
+                        assertEquals(named / 2 * 2 + unnamed / 2 * 2, count());
+                        return row(next++);
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+
+        final int[] counts = new FreemarkerBatch(TEMPLATE_FILE, "insertRecord", "hasName").withChunkSize(2).execute(handle, rows);
+
+        final int[] expected = new int[rowCount];
+        Arrays.fill(expected, 1);
+        assertArrayEquals(expected, counts);
+        assertEquals(rowCount, count());
+        assertEquals(Arrays.asList("none", "name1", "none", "name3"),
+                     handle.createQuery("SELECT name FROM rec WHERE id < 4 ORDER BY id").map(StringMapper.FIRST).list());
+    }
+
+    @Test
+    public void nullConfigUsesTheDefault()
+    {
+        final List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            rows.add(row(i));
+        }
+
+        final int[] counts = new FreemarkerBatch(TEMPLATE_FILE, "insertRecord", "hasName").withConfig(null).execute(handle, rows);
+        assertArrayEquals(new int[] { 1, 1, 1 }, counts);
+    }
+
+    @Test
+    public void nullShapeBindingsRenderOnce()
+    {
+        final Map<String, Object> row = new HashMap<>();
+        row.put("id", 7);
+
+        final int[] counts = new FreemarkerBatch(TEMPLATE_FILE, "insertId", (String[])null).execute(handle, Arrays.asList(row));
+        assertArrayEquals(new int[] { 1 }, counts);
+        assertEquals(1, count());
+    }
+
+    /**
+     * @return A row which has a name if its ID is odd
+     */
+    private static Map<String, Object> row(final int id)
+    {
+        final Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("hasName", id % 2 == 1);
+        if (id % 2 == 1) row.put("name", "name" + id);
+        return row;
+    }
+
+    private int count()
+    {
+        return handle.createQuery("SELECT COUNT(*) FROM rec").map(IntegerMapper.FIRST).first();
+    }
+}
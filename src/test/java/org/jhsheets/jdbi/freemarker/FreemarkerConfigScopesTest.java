@@ -0,0 +1,62 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FreemarkerConfigScopesTest
+{
+    private interface SomeDao
+    {
+    }
+
+    @After
+    public void clearScopes()
+    {
+        FreemarkerTemplateLocator.setDefaultScopes(null);
+    }
+
+    @Test
+    public void configSurvivesGarbageCollection()
+    {
+        FreemarkerTemplateLocator.setDefaultScopes(new FreemarkerConfigScopes(FreemarkerConfig.builder()));
+
+        // Only the scopes hold the configuration between the two lookups
+        final WeakReference<FreemarkerConfig> first = new WeakReference<>(FreemarkerTemplateLocator.getDefaultConfig(SomeDao.class));
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+        }
+
+        assertNotNull(first.get());
+        assertSame(first.get(), FreemarkerTemplateLocator.getDefaultConfig(SomeDao.class));
+    }
+
+    @Test
+    public void typesShareTheirClassLoadersConfig()
+    {
+        final FreemarkerConfigScopes scopes = new FreemarkerConfigScopes(FreemarkerConfig.builder());
+
+        final FreemarkerConfig config = scopes.getConfig(SomeDao.class);
+        assertSame(config, scopes.getConfig(FreemarkerConfigScopesTest.class));
+        assertSame(config, scopes.getConfig(SomeDao.class.getClassLoader()));
+    }
+
+    @Test
+    public void releasedConfigIsReplaced()
+    {
+        final FreemarkerConfigScopes scopes = new FreemarkerConfigScopes(FreemarkerConfig.builder());
+
+        final FreemarkerConfig config = scopes.getConfig(SomeDao.class);
+        scopes.release(SomeDao.class.getClassLoader());
+
+        final FreemarkerConfig replacement = scopes.getConfig(SomeDao.class);
+        assertNotSame(config, replacement);
+        assertSame(replacement, scopes.getConfig(SomeDao.class));
+    }
+}
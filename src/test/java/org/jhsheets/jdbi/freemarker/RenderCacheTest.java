@@ -0,0 +1,130 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class RenderCacheTest
+{
+    private static final String TEMPLATE_FILE = "org/jhsheets/jdbi/freemarker/RenderCacheTest.xml";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Handle handle;
+
+
+    @Before
+    public void open()
+    {
+        handle = new DBI("jdbc:h2:mem:").open();
+    }
+
+    @After
+    public void close()
+    {
+        handle.close();
+    }
+
+    @Test
+    public void inputsReadOnEitherBranchAreKeys()
+    throws Exception
+    {
+        final FreemarkerConfig config = FreemarkerConfig.builder().renderCache(100).build();
+        final FreemarkerTemplateLocator locator = new FreemarkerTemplateLocator(TEMPLATE_FILE, null, config);
+
+        assertEquals("SELECT 1 AS v", locate(locator, "byFlag", "flag", true, "a", 1, "b", 2));
+        assertEquals("SELECT 2 AS v", locate(locator, "byFlag", "flag", false, "a", 1, "b", 2));
+
+        // b is only read on the other branch, but a cached render must not be reused when it changes
+        assertEquals("SELECT 3 AS v", locate(locator, "byFlag", "flag", false, "a", 1, "b", 3));
+        assertEquals("SELECT 1 AS v", locate(locator, "byFlag", "flag", true, "a", 1, "b", 3));
+        assertEquals("SELECT 4 AS v", locate(locator, "byFlag", "flag", true, "a", 4, "b", 3));
+        final int size = config.getRenderCache().size();
+
+        assertEquals("SELECT 3 AS v", locate(locator, "byFlag", "flag", false, "a", 1, "b", 3));
+        assertEquals("SELECT 4 AS v", locate(locator, "byFlag", "flag", true, "a", 4, "b", 3));
+        assertEquals(size, config.getRenderCache().size());
+    }
+
+    @Test
+    public void editsToAnIncludedTemplateAreSeen()
+    throws Exception
+    {
+        final File dao = new File(folder.getRoot(), "Dao.xml");
+        final File common = new File(folder.getRoot(), "Common.xml");
+        write(dao, "<queries><select id=\"list\"><![CDATA[SELECT <#include \"Common.xml#cols\"> FROM rec]]></select></queries>");
+        write(common, "<queries><fragment id=\"cols\">id</fragment></queries>");
+
+        try (final URLClassLoader loader = new URLClassLoader(new URL[] { folder.getRoot().toURI().toURL() }, null))
+        {
+            final FreemarkerConfig config = FreemarkerConfig.builder()
+                                                            .classLoader(loader)
+                                                            .templateUpdateDelay(0)
+                                                            .renderCache(100)
+                                                            .build();
+            final FreemarkerTemplateLocator locator = new FreemarkerTemplateLocator("Dao.xml", null, config);
+
+            assertEquals("SELECT id FROM rec", locate(locator, "list"));
+            assertEquals("SELECT id FROM rec", locate(locator, "list"));
+
+            write(common, "<queries><fragment id=\"cols\">id, name</fragment></queries>");
+            common.setLastModified(common.lastModified() + 10000);
+
+            assertEquals("SELECT id, name FROM rec", locate(locator, "list"));
+            assertEquals(0, config.getRenderCache().size());
+        }
+    }
+
+    @Test
+    public void statementsUsingAnImportedFragmentArentCached()
+    throws Exception
+    {
+        final FreemarkerConfig config = FreemarkerConfig.builder()
+                                                        .importFragment("lib", TEMPLATE_FILE, "macros")
+                                                        .renderCache(100)
+                                                        .build();
+        final FreemarkerTemplateLocator locator = new FreemarkerTemplateLocator(TEMPLATE_FILE, null, config);
+
+        assertEquals("SELECT 1 AS v", locate(locator, "viaImport"));
+        assertEquals(0, config.getRenderCache().size());
+
+        assertEquals("SELECT 2 AS v", locate(locator, "byFlag", "flag", false, "b", 2));
+        assertEquals(1, config.getRenderCache().size());
+    }
+
+    /**
+     * @param bindings Pairs of a name and the value to bind to it
+     * @return The statement's trimmed SQL
+     */
+    private String locate(final FreemarkerTemplateLocator locator, final String name, final Object... bindings)
+    throws Exception
+    {
+        final Update update = handle.createStatement(name);
+        for (int i = 0; i < bindings.length; i += 2)
+        {
+            update.bind((String)bindings[i], bindings[i + 1]);
+        }
+        return locator.locate(name, update.getContext()).trim();
+    }
+
+    private static void write(final File file, final String content)
+    throws IOException
+    {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,92 @@
+package org.jhsheets.jdbi.freemarker;
+
+import org.jhsheets.jdbi.freemarker.WhitespaceNormalizingWriter.Option;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class WhitespaceNormalizingWriterTest
+{
+    private static final Set<Option> MYSQL = EnumSet.of(Option.BACKSLASH_ESCAPES, Option.HASH_COMMENTS);
+
+    @Test
+    public void collapsesWhitespaceBetweenTokens()
+    {
+        assertEquals("SELECT a, b FROM t WHERE a = 1",
+                     WhitespaceNormalizingWriter.normalize("\n  SELECT a,\n\t\tb\n  FROM   t\n  WHERE a = 1\n"));
+    }
+
+    @Test
+    public void backslashEndsNothingInStandardLiterals()
+    {
+        assertEquals("SELECT 'C:\\' || ' a  b ' FROM t",
+                     WhitespaceNormalizingWriter.normalize("SELECT  'C:\\'  ||  ' a  b '  FROM  t"));
+    }
+
+    @Test
+    public void doubledQuotesStayInTheLiteral()
+    {
+        assertEquals("SELECT 'it''s  here', \"a  \"\"b\" FROM t",
+                     WhitespaceNormalizingWriter.normalize("SELECT   'it''s  here',  \"a  \"\"b\"   FROM t"));
+    }
+
+    @Test
+    public void hashIsNotACommentByDefault()
+    {
+        assertEquals("SELECT data #> '{a, b}' FROM t",
+                     WhitespaceNormalizingWriter.normalize("SELECT  data  #>  '{a, b}'\n  FROM  t"));
+        assertEquals("SELECT * FROM #temp WHERE a = 1",
+                     WhitespaceNormalizingWriter.normalize("SELECT *\n  FROM #temp\n  WHERE  a = 1"));
+    }
+
+    @Test
+    public void commentsAreKept()
+    {
+        assertEquals("SELECT a -- the  a\nFROM t /*+ INDEX(t  ix) */ WHERE a = 1",
+                     WhitespaceNormalizingWriter.normalize("SELECT  a  -- the  a\n   FROM  t  /*+ INDEX(t  ix) */\n  WHERE a = 1"));
+    }
+
+    @Test
+    public void mysqlOptions()
+    {
+        assertEquals("SELECT 'it\\'s  here' # the  rest\nFROM t",
+                     WhitespaceNormalizingWriter.normalize("SELECT  'it\\'s  here'  # the  rest\n  FROM  t", MYSQL));
+    }
+
+    @Test
+    public void chunkedWritesMatchASingleWrite()
+    throws IOException
+    {
+        final String sql = "\n  SELECT  'C:\\'  ||  'it''s  a  b',  \"x  y\"  -- a  comment\n"
+                         + "    FROM  #temp  /* block   comment */\n    WHERE  data  #>>  '{a}'  =  ?\n";
+        final String expected = WhitespaceNormalizingWriter.normalize(sql);
+
+        final StringWriter buffer = new StringWriter();
+        try (final WhitespaceNormalizingWriter out = new WhitespaceNormalizingWriter(buffer))
+        {
+            for (int i = 0; i < sql.length(); i++)
+            {
+                out.write(sql.charAt(i));
+            }
+        }
+        assertEquals(expected, buffer.toString());
+
+        for (int chunk = 2; chunk < 8; chunk++)
+        {
+            final StringWriter chunked = new StringWriter();
+            try (final WhitespaceNormalizingWriter out = new WhitespaceNormalizingWriter(chunked))
+            {
+                for (int i = 0; i < sql.length(); i += chunk)
+                {
+                    out.write(sql, i, Math.min(chunk, sql.length() - i));
+                }
+            }
+            assertEquals(expected, chunked.toString());
+        }
+    }
+}